@@ -0,0 +1,28 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.document;
+
+import bka.graph.swing.*;
+import java.io.*;
+
+
+/**
+ * Stores the state of a custom picture class that the binary book format does not store itself.
+ * The binary format stores vertex, location and size of vertex pictures, and edge, end pictures,
+ * points and attachment indices of edge pictures. A delegate is registered for the exact picture class.
+ * Pages are decoded concurrently, so read may be called by several threads at once for different pictures.
+ */
+public interface BinaryPersistenceDelegate {
+
+    void write(AbstractPicture picture, DataOutput output) throws IOException;
+
+    /**
+     * @param picture created by its no argument constructor, with the state stored by the binary format
+     * @param input
+     * @throws IOException
+     */
+    void read(AbstractPicture picture, DataInput input) throws IOException;
+
+}
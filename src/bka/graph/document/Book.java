@@ -9,41 +9,351 @@ import bka.graph.*;
 import bka.graph.swing.*;
 import java.beans.*;
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.logging.*;
 
 
 public class Book {
 
 
+    /**
+     * Changes of a book prepared for a file, to be encoded and written to the file.
+     */
+    public interface Update {
+        void write() throws IOException;
+    }
+
+
+    /**
+     * Notified when the content of a page of an opened book is loaded into or released from memory.
+     */
+    public interface PageListener {
+        /**
+         * @param page loaded, on the thread that accessed it
+         */
+        void pageLoaded(DiagramPage page);
+        void pageReleased(DiagramPage page);
+    }
+
+
     public Book(Map<Class, PersistenceDelegate> persistenceDelegates) {
+        this(persistenceDelegates, null);
+    }
+
+
+    /**
+     * @param persistenceDelegates for the XML format and for vertices, edges and draw styles in the binary format
+     * @param binaryPersistenceDelegates for custom picture classes in the binary format
+     */
+    public Book(Map<Class, PersistenceDelegate> persistenceDelegates, Map<Class, BinaryPersistenceDelegate> binaryPersistenceDelegates) {
         this.persistenceDelegates = persistenceDelegates;
+        this.binaryPersistenceDelegates = (binaryPersistenceDelegates != null) ? binaryPersistenceDelegates : Collections.emptyMap();
+        pagedFormat = new PagedBookFormat(persistenceDelegates, binaryPersistenceDelegates, this::pageLoaded);
     }
 
 
+    /**
+     * Saves in XML format if the name of file has the XML extension or if the book contains
+     * custom pictures without binary persistence delegate, otherwise in paged binary format.
+     * Other I/O errors than a file that cannot be opened are thrown unchecked, to keep the signature of the XML-only book.
+     * @param file
+     * @throws FileNotFoundException if file cannot be opened for writing
+     * @throws UncheckedIOException if the book cannot be encoded or written
+     */
     public void save(File file) throws FileNotFoundException {
-        try (XMLEncoder xmlEncoder = createEncoder(file)) {
+        try {
+            prepareSave(file).write();
+        }
+        catch (FileNotFoundException ex) {
+            throw ex;
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    /**
+     * Prepares this book to be saved to file in the format that save(File) chooses.
+     * The content of the pages is copied or encoded on the calling thread, the rest of the encoding is left to the update,
+     * so the update may be written by another thread while the pages change. Vertices and edges are not copied,
+     * the update encodes them as they are when it is written.
+     * A paged book that was loaded from or saved to file before is updated with the pages modified since,
+     * the index and the vertices and edges that are new or modified since.
+     * Updates must be written in the order they are prepared.
+     * @param file
+     * @return update to write
+     * @throws IOException
+     */
+    public Update prepareSave(File file) throws IOException {
+        if (file.equals(savedFile) && ! isModified()) {
+            return () -> {};
+        }
+        Update update;
+        if (file.getName().toLowerCase().endsWith(XML_SUFFIX) || ! pagedFormat.canWrite(pages)) {
+            update = prepareXml(file);
+            pagedFormat.replaced(file);
+        }
+        else {
+            update = pagedFormat.prepare(file, pages, pageIndex, DrawStyleManager.getInstance().getCustomizedDrawStyles(), dirtyPages, modelModified, modelPictures);
+        }
+        saved(file);
+        return update;
+    }
+
+
+    /**
+     * Marks page to be written by the next save.
+     * @param page
+     */
+    public void pageModified(DiagramPage page) {
+        dirtyPages.add(page);
+    }
+
+
+    /**
+     * Marks all vertices and edges to be written by the next save.
+     */
+    public void modelModified() {
+        modelModified = true;
+    }
+
+
+    /**
+     * Marks the vertex or edge of picture to be written by the next save.
+     * @param picture
+     */
+    public void modelModified(AbstractPicture picture) {
+        modelPictures.add(picture);
+    }
+
+
+    /**
+     * Marks customized draw styles to be written by the next save.
+     */
+    public void stylesModified() {
+        stylesModified = true;
+    }
+
+
+    /**
+     * @return true if this book is modified since it was loaded or saved.
+     */
+    public boolean isModified() {
+        return ! dirtyPages.isEmpty() || modelModified || ! modelPictures.isEmpty() || stylesModified || pageIndex != savedPageIndex || ! samePages(savedPages, pages);
+    }
+
+
+    /**
+     * Loads file in binary or XML format, the format is detected from the content of file.
+     * Other I/O errors than a file that cannot be opened are thrown unchecked, like save does.
+     * @param file
+     * @throws FileNotFoundException if file cannot be opened for reading
+     * @throws UncheckedIOException if file cannot be read or decoded
+     */
+    public void load(File file) throws FileNotFoundException {
+        pages.clear();
+        try {
+            load(file, pages::add);
+        }
+        catch (FileNotFoundException ex) {
+            throw ex;
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    /**
+     * Hands the pages of file to consumer one at a time, in order, each page as soon as it is decoded.
+     * Binary books are decoded page by page, pages of paged books concurrently. XML books are decoded completely
+     * before the first page is handed over.
+     * Draw styles of the pictures on a page are applied before the page is handed over.
+     * Pages are not added to this book, the page index of this book is set after the last page.
+     * @param file
+     * @param consumer
+     * @throws IOException
+     */
+    public void load(File file, Consumer<DiagramPage> consumer) throws IOException {
+        load(file, consumer, false);
+    }
+
+
+    /**
+     * Hands the pages of file to consumer like load does. Pages of a paged book are handed over without their content,
+     * the file is kept open and the content of a page is read and decoded when it is accessed for the first time.
+     * Page listeners are notified when that happens.
+     * Pages are not added to this book, the page index of this book is set after the last page.
+     * @param file
+     * @param consumer
+     * @throws IOException
+     */
+    public void open(File file, Consumer<DiagramPage> consumer) throws IOException {
+        load(file, consumer, true);
+    }
+
+
+    /**
+     * Releases the content of page from memory, it is loaded from the book file again when page is accessed.
+     * Only pages of paged books that are not modified since the book was loaded or saved can be released.
+     * Page listeners are notified if page is released.
+     * @param page
+     * @return true if page is not loaded anymore
+     */
+    public boolean release(DiagramPage page) {
+        if (! page.isLoaded()) {
+            return true;
+        }
+        if (savedFile == null || dirtyPages.contains(page) || ! pages.contains(page) || ! pagedFormat.unload(savedFile, page)) {
+            return false;
+        }
+        for (PageListener listener : pageListeners) {
+            listener.pageReleased(page);
+        }
+        return true;
+    }
+
+
+    /**
+     * Closes the book file, it is opened again when a page that is not loaded is accessed.
+     */
+    public void close() {
+        pagedFormat.close();
+    }
+
+
+    public void addPageListener(PageListener listener) {
+        pageListeners.add(listener);
+    }
+
+
+    public void removePageListener(PageListener listener) {
+        pageListeners.remove(listener);
+    }
+
+
+    private void load(File file, Consumer<DiagramPage> consumer, boolean open) throws IOException {
+        ArrayList<DiagramPage> loadedPages = new ArrayList<>();
+        Consumer<DiagramPage> loader = page -> {
+            loadedPages.add(page);
+            consumer.accept(page);
+        };
+        if (PagedBookFormat.isPaged(file)) {
+            pageIndex = (open) ? pagedFormat.open(file, loader) : pagedFormat.read(file, loader);
+        }
+        else {
+            loadXml(file, loader);
+        }
+        dirtyPages.clear();
+        modelModified = false;
+        modelPictures.clear();
+        stylesModified = false;
+        savedFile = file;
+        savedPages = loadedPages;
+        savedPageIndex = pageIndex;
+    }
+
+
+    private void pageLoaded(DiagramPage page) {
+        for (PageListener listener : pageListeners) {
+            listener.pageLoaded(page);
+        }
+    }
+
+
+    private void saved(File file) {
+        dirtyPages.clear();
+        modelModified = false;
+        modelPictures.clear();
+        stylesModified = false;
+        savedFile = file;
+        savedPages = new ArrayList<>(pages);
+        savedPageIndex = pageIndex;
+    }
+
+
+    private static boolean samePages(List<DiagramPage> pages1, List<DiagramPage> pages2) {
+        if (pages1.size() != pages2.size()) {
+            return false;
+        }
+        for (int i = 0; i < pages1.size(); ++i) {
+            if (pages1.get(i) != pages2.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static void writeFile(File file, ByteArrayOutputStream content) throws IOException {
+        File temporaryFile = new File(file.getPath() + TEMPORARY_SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            content.writeTo(output);
+            output.getFD().sync();
+        }
+        try {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+    /**
+     * Copies the pages and the styles of their pictures when all pictures can be copied, so the update encodes the copies.
+     * Otherwise the book is encoded on the calling thread.
+     */
+    private Update prepareXml(File file) throws IOException {
+        Map<Object, DrawStyle> styles = DrawStyleManager.getInstance().getCustomizedDrawStyles();
+        PageCopier copier = new PageCopier(persistenceDelegates);
+        if (! copier.canCopy(pages)) {
+            ByteArrayOutputStream buffer = encodeXml(pages, pageIndex, styles);
+            return () -> writeFile(file, buffer);
+        }
+        ArrayList<DiagramPage> copiedPages = new ArrayList<>();
+        for (DiagramPage page : pages) {
+            copiedPages.add(copier.copy(page));
+        }
+        Map<Object, DrawStyle> copiedStyles = new HashMap<>();
+        for (Map.Entry<Object, DrawStyle> entry : styles.entrySet()) {
+            copiedStyles.put(copier.copyOf(entry.getKey()), entry.getValue());
+        }
+        int copiedPageIndex = pageIndex;
+        return () -> writeFile(file, encodeXml(copiedPages, copiedPageIndex, copiedStyles));
+    }
+
+
+    private ByteArrayOutputStream encodeXml(ArrayList<DiagramPage> pages, int pageIndex, Map<Object, DrawStyle> styles) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (XMLEncoder xmlEncoder = createEncoder(buffer)) {
             xmlEncoder.writeObject(pages);
             xmlEncoder.writeObject(pageIndex);
-            xmlEncoder.writeObject(DrawStyleManager.getInstance().getCustomizedDrawStyles());
+            xmlEncoder.writeObject(styles);
         }
+        return buffer;
     }
 
 
-   public void load(File file) throws FileNotFoundException {
+    private void loadXml(File file, Consumer<DiagramPage> consumer) throws FileNotFoundException {
         try (XMLDecoder xmlDecoder = createDecoder(file)) {
-            pages.clear();
-            Object read = readObject(xmlDecoder);
-            if (read != null) {
-                pages.addAll((ArrayList<DiagramPage>) read);
+            Object decodedPages = readObject(xmlDecoder);
+            Object decodedPageIndex = readObject(xmlDecoder);
+            Object decodedStyles = readObject(xmlDecoder);
+            if (decodedStyles != null) {
+                DrawStyleManager.getInstance().setDrawStyles((Map<Object, DrawStyle>) decodedStyles);
             }
-            read = readObject(xmlDecoder);
-            if (read != null) {
-                pageIndex = (Integer) read;
+            if (decodedPages != null) {
+                for (DiagramPage page : (ArrayList<DiagramPage>) decodedPages) {
+                    consumer.accept(page);
+                }
             }
-            read = readObject(xmlDecoder);
-            if (read != null) {
-                DrawStyleManager.getInstance().setDrawStyles((Map<Object, DrawStyle>) read);
+            if (decodedPageIndex != null) {
+                pageIndex = (Integer) decodedPageIndex;
             }
         }
     }
@@ -156,8 +466,18 @@ public class Book {
     }
 
 
-    private XMLEncoder createEncoder(File file) throws FileNotFoundException {
-        XMLEncoder xmlEncoder = new XMLEncoder(new BufferedOutputStream(new FileOutputStream(file)));
+    Map<Class, PersistenceDelegate> getPersistenceDelegates() {
+        return persistenceDelegates;
+    }
+
+
+    Map<Class, BinaryPersistenceDelegate> getBinaryPersistenceDelegates() {
+        return binaryPersistenceDelegates;
+    }
+
+
+    private XMLEncoder createEncoder(OutputStream output) {
+        XMLEncoder xmlEncoder = new XMLEncoder(output);
         if (persistenceDelegates != null) {
             for (Map.Entry<Class, PersistenceDelegate> entry : persistenceDelegates.entrySet()) {
                 xmlEncoder.setPersistenceDelegate(entry.getKey(), entry.getValue());
@@ -173,7 +493,22 @@ public class Book {
 
 
     private final Map<Class, PersistenceDelegate> persistenceDelegates;
+    private final Map<Class, BinaryPersistenceDelegate> binaryPersistenceDelegates;
+    private final PagedBookFormat pagedFormat;
     private final ArrayList<DiagramPage> pages = new ArrayList<>();
     private int pageIndex;
 
+    private final Set<DiagramPage> dirtyPages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean modelModified;
+    private final Set<AbstractPicture> modelPictures = Collections.newSetFromMap(new IdentityHashMap<>());
+    private boolean stylesModified;
+    private File savedFile;
+    private List<DiagramPage> savedPages = new ArrayList<>();
+    private int savedPageIndex;
+
+    private final Collection<PageListener> pageListeners = new CopyOnWriteArrayList<>();
+
+    private static final String XML_SUFFIX = ".xml";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
 }
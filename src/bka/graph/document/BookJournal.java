@@ -0,0 +1,976 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.document;
+
+import bka.graph.*;
+import bka.graph.swing.*;
+import java.awt.*;
+import java.beans.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+
+/**
+ * Write-ahead journal of the pictures changed since the book file was written.
+ * Each change is appended as a record holding the state of the changed pictures only, on a background thread.
+ * Compaction saves the book to its file and starts a new journal. After a crash the journal
+ * is replayed onto the pages of the book file.
+ *
+ * Pictures are referred to by their number in the page of the record as stored in the book file, in drawing order,
+ * or by their order of appearance in the journal. Vertices are referred to by a page that shows them and their
+ * number in that page, or by their order of appearance in the journal. Pages are numbered when they are loaded,
+ * so pages of an opened book that are not accessed are not loaded by the journal. New vertices are stored in XML
+ * so their persistence delegates apply. A record is length prefixed and followed by its checksum, a torn last record is ignored.
+ * The journal belongs to the book file it was started for, a journal left by another version of the
+ * file is ignored.
+ */
+public class BookJournal {
+
+
+    public BookJournal(Book book, File bookFile) {
+        this.book = book;
+        this.bookFile = bookFile;
+        journalFile = new File(bookFile.getPath() + SUFFIX);
+        stamp = new Stamp(bookFile);
+        book.addPageListener(pageListener);
+    }
+
+
+    /**
+     * @param failureHandler accepts failures of writing the journal or the book file, on the journal thread
+     */
+    public void setFailureHandler(Consumer<Exception> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+
+    /**
+     * @return true if the journal holds changes of the book file that the book file does not contain
+     */
+    public boolean needsRecovery() {
+        if (journalFile.length() <= HEADER_SIZE) {
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            return stamp.equals(readHeader(input));
+        }
+        catch (IOException ex) {
+            Logger.getLogger(BookJournal.class.getName()).log(Level.WARNING, journalFile.toString(), ex);
+            return false;
+        }
+    }
+
+
+    /**
+     * Applies the changes in the journal to pages, the pages of the book file in order, and marks them modified
+     * in the book. Pages that are not loaded are loaded when changes apply to them.
+     * New changes are appended to the recovered journal.
+     * If a change cannot be applied, the journal is kept aside with suffix ".failed" and pages are replaced by
+     * the pages of the book file opened again, so the book can still be opened.
+     * @param pages
+     * @return number of records applied
+     * @throws IOException if the book file cannot be opened again
+     */
+    public int recover(java.util.List<DiagramPage> pages) throws IOException {
+        synchronized (lock) {
+            for (DiagramPage page : pages) {
+                if (page.isLoaded()) {
+                    numbering(page);
+                }
+            }
+            long end = HEADER_SIZE;
+            int count = 0;
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                readHeader(input);
+                byte[] record = readRecord(input);
+                while (record != null) {
+                    new Replayer(new DataInputStream(new ByteArrayInputStream(record))).replay(pages);
+                    end += Integer.BYTES + record.length + Integer.BYTES;
+                    count++;
+                    record = readRecord(input);
+                }
+            }
+            catch (IOException | RuntimeException ex) {
+                Logger.getLogger(BookJournal.class.getName()).log(Level.SEVERE, "Cannot recover " + journalFile, ex);
+                abandon(pages);
+                return 0;
+            }
+            try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+                file.setLength(end); // Drop a torn record
+            }
+            initialized = true;
+            recordCount = count;
+            complete = true;
+            return count;
+        }
+    }
+
+
+    /**
+     * Moves the journal aside and opens the book file again, replacing the partly recovered pages.
+     */
+    private void abandon(java.util.List<DiagramPage> pages) throws IOException {
+        File failedFile = new File(journalFile.getPath() + FAILED_SUFFIX);
+        Files.move(journalFile.toPath(), failedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Logger.getLogger(BookJournal.class.getName()).log(Level.WARNING, "Journal kept as {0}", failedFile);
+        clearNumbers();
+        pages.clear();
+        book.open(bookFile, pages::add);
+        for (DiagramPage page : pages) {
+            if (page.isLoaded()) {
+                numbering(page);
+            }
+        }
+        initialized = false;
+        recordCount = 0;
+        complete = true;
+    }
+
+
+    /**
+     * Numbers the pictures of page as stored in the book file. Pages of an opened book are numbered when their
+     * content is loaded.
+     * @param page
+     */
+    public void pageLoaded(DiagramPage page) {
+        synchronized (lock) {
+            if (page.isLoaded()) {
+                numbering(page);
+            }
+        }
+    }
+
+
+    /**
+     * All pages of the book file are handed over, a compaction requested during loading is done now.
+     */
+    public void pagesLoaded() {
+        synchronized (lock) {
+            complete = true;
+            if (compactionPending) {
+                compact();
+            }
+        }
+    }
+
+
+    /**
+     * Appends the current state of pictures of page. Pictures not on page anymore are recorded as removed.
+     * Changes that a record cannot hold, like pages added or removed or pictures without binary persistence
+     * delegate, are left to the next compaction. Nothing is recorded until then, so the journal replays onto
+     * a state the book has been in.
+     * @param page
+     * @param pictures
+     * @return false if the change is left to the next compaction or the journal is due for compaction
+     */
+    public boolean record(DiagramPage page, Collection<? extends AbstractPicture> pictures) {
+        synchronized (lock) {
+            if (behind) {
+                return false;
+            }
+            int pageNumber = book.getDiagramPages().indexOf(page);
+            if (pageNumber < 0 || ! numberings.containsKey(page) || ! isJournaled(pictures)) {
+                behind = true;
+                return false;
+            }
+            byte[] record;
+            try {
+                record = new Recorder(page).record(pageNumber, page, pictures);
+            }
+            catch (IOException | RuntimeException ex) {
+                Logger.getLogger(BookJournal.class.getName()).log(Level.WARNING, journalFile.toString(), ex);
+                behind = true;
+                return false;
+            }
+            submit(() -> append(record));
+            recordCount++;
+            return recordCount < COMPACTION_RECORD_COUNT;
+        }
+    }
+
+
+    /**
+     * Copies the changes of the book on the calling thread, encodes and writes them to the book file in the background,
+     * the journal is started anew after the book file is written.
+     */
+    public void compact() {
+        synchronized (lock) {
+            if (! complete) {
+                compactionPending = true;
+                return;
+            }
+            compactionPending = false;
+            Book.Update update;
+            try {
+                update = book.prepareSave(bookFile);
+            }
+            catch (IOException | RuntimeException ex) {
+                failed(ex);
+                return;
+            }
+            clearNumbers();
+            for (DiagramPage page : book.getDiagramPages()) {
+                if (page.isLoaded()) {
+                    numbering(page);
+                }
+            }
+            recordCount = 0;
+            behind = false;
+            submit(() -> writeSnapshot(update));
+        }
+    }
+
+
+    /**
+     * Waits until pending records and snapshots are written.
+     */
+    public void close() {
+        book.removePageListener(pageListener);
+        executor.shutdown();
+        try {
+            if (! executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+                Logger.getLogger(BookJournal.class.getName()).log(Level.WARNING, "Journal not closed in time {0}", journalFile);
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        closeOutput();
+    }
+
+
+    private boolean isJournaled(Collection<? extends AbstractPicture> pictures) {
+        for (AbstractPicture picture : pictures) {
+            if (picture.getClass() != VertexPicture.class && picture.getClass() != EdgePicture.class && ! book.getBinaryPersistenceDelegates().containsKey(picture.getClass())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * The numbering of a page is made before the page is modified, a page that is accessed for the first time
+     * is loaded by the numbering.
+     */
+    private Numbering numbering(DiagramPage page) {
+        Numbering numbering = numberings.get(page);
+        if (numbering == null) {
+            numbering = new Numbering();
+            numberings.put(page, numbering); // Found when loading page notifies the page listener
+            numbering.number(page);
+        }
+        return numbering;
+    }
+
+
+    private void clearNumbers() {
+        numberings.clear();
+        newPictures.clear();
+        newPictureReferences.clear();
+        newVertices.clear();
+        newVertexReferences.clear();
+        vertexReferences.clear();
+    }
+
+
+    private void submit(Task task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            }
+            catch (IOException | RuntimeException ex) {
+                failed(ex);
+            }
+        });
+    }
+
+
+    private void append(byte[] record) throws IOException {
+        if (output == null) {
+            output = new FileOutputStream(journalFile, initialized);
+            if (! initialized) {
+                writeHeader();
+            }
+        }
+        output.write(record);
+    }
+
+
+    private void writeSnapshot(Book.Update update) throws IOException {
+        closeOutput();
+        update.write();
+        stamp = new Stamp(bookFile);
+        output = new FileOutputStream(journalFile, false);
+        writeHeader();
+        initialized = true;
+    }
+
+
+    private void writeHeader() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_SIZE);
+        DataOutputStream header = new DataOutputStream(buffer);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(stamp.length);
+        header.writeLong(stamp.modified);
+        buffer.writeTo(output);
+    }
+
+
+    private void closeOutput() {
+        if (output != null) {
+            try {
+                output.close();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(BookJournal.class.getName()).log(Level.WARNING, journalFile.toString(), ex);
+            }
+            output = null;
+        }
+    }
+
+
+    private void failed(Exception exception) {
+        Logger.getLogger(BookJournal.class.getName()).log(Level.SEVERE, bookFile.toString(), exception);
+        Consumer<Exception> handler = failureHandler;
+        if (handler != null) {
+            handler.accept(exception);
+        }
+    }
+
+
+    private static Stamp readHeader(DataInputStream input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a book journal");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported book journal version " + version);
+        }
+        return new Stamp(input.readLong(), input.readLong());
+    }
+
+
+    /**
+     * @return payload of the next record, null at the end of the journal or at a torn record
+     */
+    private static byte[] readRecord(DataInputStream input) throws IOException {
+        try {
+            int length = input.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            int checksum = input.readInt();
+            return (checksum == checksum(payload)) ? payload : null;
+        }
+        catch (EOFException ex) {
+            return null;
+        }
+    }
+
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+
+    /**
+     * Record layout: page number, entry count and the entries. An entry holds the definition of a picture
+     * not known to the journal yet or the reference to a known picture, whether it is on the page and its state.
+     */
+    private class Recorder {
+
+        Recorder(DiagramPage page) {
+            numbering = numberings.get(page);
+        }
+
+        byte[] record(int pageNumber, DiagramPage page, Collection<? extends AbstractPicture> changed) throws IOException {
+            for (AbstractPicture picture : changed) {
+                if (picture instanceof VertexPicture) {
+                    add(page, picture);
+                }
+            }
+            for (AbstractPicture picture : changed) {
+                if (picture instanceof EdgePicture) {
+                    add(page, picture);
+                }
+            }
+            output.writeInt(pageNumber);
+            output.writeInt(entries.size());
+            for (AbstractPicture picture : entries) {
+                writeEntry(page, picture);
+            }
+            byte[] payload = buffer.toByteArray();
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 2 * Integer.BYTES);
+            DataOutputStream frameOutput = new DataOutputStream(frame);
+            frameOutput.writeInt(payload.length);
+            frameOutput.write(payload);
+            frameOutput.writeInt(checksum(payload));
+            return frame.toByteArray();
+        }
+
+        /**
+         * Adds end pictures of new edges before the edges, so they are defined first.
+         */
+        private void add(DiagramPage page, AbstractPicture picture) {
+            if (! entries.contains(picture)) {
+                if (picture instanceof EdgePicture && reference(picture) == null) {
+                    EdgePicture edgePicture = (EdgePicture) picture;
+                    if (edgePicture.getOriginPicture() != null && reference(edgePicture.getOriginPicture()) == null) {
+                        add(page, edgePicture.getOriginPicture());
+                    }
+                    if (edgePicture.getTerminusPicture() != null && reference(edgePicture.getTerminusPicture()) == null) {
+                        add(page, edgePicture.getTerminusPicture());
+                    }
+                }
+                entries.add(picture);
+            }
+        }
+
+        private void writeEntry(DiagramPage page, AbstractPicture picture) throws IOException {
+            Integer reference = reference(picture);
+            output.writeBoolean(reference == null);
+            if (reference == null) {
+                writeDefinition(picture);
+            }
+            else {
+                output.writeInt(reference);
+            }
+            output.writeBoolean(page.contains(picture));
+            if (picture instanceof VertexPicture) {
+                writeState((VertexPicture) picture);
+            }
+            else {
+                writeState((EdgePicture) picture);
+            }
+            writeExtension(picture);
+        }
+
+        private void writeDefinition(AbstractPicture picture) throws IOException {
+            writeString(picture.getClass().getName());
+            if (picture instanceof VertexPicture) {
+                writeVertex(((VertexPicture) picture).getVertex());
+            }
+            else {
+                writeEdge(((EdgePicture) picture).getEdge());
+            }
+            newPictureReferences.put(picture, newReference(newPictures.size()));
+            newPictures.add(picture);
+        }
+
+        private void writeVertex(Vertex vertex) throws IOException {
+            if (vertex == null) {
+                output.writeInt(NULL_REFERENCE);
+                return;
+            }
+            Integer newReference = newVertexReferences.get(vertex);
+            if (newReference != null) {
+                output.writeInt(newReference);
+                return;
+            }
+            VertexReference reference = vertexReferences.get(vertex);
+            int pageNumber = (reference != null) ? pages().indexOf(reference.page) : NULL_REFERENCE;
+            if (pageNumber >= 0) {
+                output.writeInt(pageNumber);
+                output.writeInt(reference.number);
+                return;
+            }
+            output.writeInt(NEW_VERTEX);
+            writeXml(vertex);
+            newVertexReferences.put(vertex, newReference(newVertices.size()));
+            newVertices.add(vertex);
+        }
+
+        /**
+         * Encodes edge with its properties, the vertices it connects are bound again when replayed.
+         */
+        private void writeEdge(Edge edge) throws IOException {
+            output.writeBoolean(edge != null);
+            if (edge != null) {
+                writeXml(edge);
+            }
+        }
+
+        private void writeXml(Object object) throws IOException {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try (XMLEncoder encoder = new XMLEncoder(xml)) {
+                Map<Class, PersistenceDelegate> persistenceDelegates = book.getPersistenceDelegates();
+                if (persistenceDelegates != null) {
+                    for (Map.Entry<Class, PersistenceDelegate> entry : persistenceDelegates.entrySet()) {
+                        encoder.setPersistenceDelegate(entry.getKey(), entry.getValue());
+                    }
+                }
+                encoder.writeObject(object);
+            }
+            output.writeInt(xml.size());
+            xml.writeTo(output);
+        }
+
+        private void writeState(VertexPicture picture) throws IOException {
+            Point location = picture.getLocation();
+            output.writeBoolean(location != null);
+            if (location != null) {
+                output.writeInt(location.x);
+                output.writeInt(location.y);
+            }
+            Dimension size = picture.getSize();
+            output.writeBoolean(size != null);
+            if (size != null) {
+                output.writeInt(size.width);
+                output.writeInt(size.height);
+            }
+        }
+
+        private void writeState(EdgePicture picture) throws IOException {
+            output.writeInt(endReference(picture.getOriginPicture()));
+            output.writeInt(endReference(picture.getTerminusPicture()));
+            writeInts(picture.getXPoints());
+            writeInts(picture.getYPoints());
+            output.writeInt(picture.getOriginAttachmentIndex());
+            output.writeInt(picture.getTerminusAttachmentIndex());
+        }
+
+        private void writeExtension(AbstractPicture picture) throws IOException {
+            BinaryPersistenceDelegate delegate = book.getBinaryPersistenceDelegates().get(picture.getClass());
+            if (delegate == null) {
+                output.writeInt(0);
+                return;
+            }
+            ByteArrayOutputStream extension = new ByteArrayOutputStream();
+            delegate.write(picture, new DataOutputStream(extension));
+            output.writeInt(extension.size());
+            extension.writeTo(output);
+        }
+
+        private int endReference(AbstractPicture picture) {
+            return (picture != null) ? reference(picture) : NULL_REFERENCE;
+        }
+
+        private Integer reference(AbstractPicture picture) {
+            Integer reference = numbering.references.get(picture);
+            return (reference != null) ? reference : newPictureReferences.get(picture);
+        }
+
+        private java.util.List<DiagramPage> pages() {
+            if (pages == null) {
+                pages = book.getDiagramPages();
+            }
+            return pages;
+        }
+
+        private void writeInts(int[] values) throws IOException {
+            output.writeInt((values != null) ? values.length : NULL_REFERENCE);
+            if (values != null) {
+                for (int value : values) {
+                    output.writeInt(value);
+                }
+            }
+        }
+
+        private void writeString(String string) throws IOException {
+            if (string == null) {
+                output.writeInt(NULL_REFERENCE);
+                return;
+            }
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        private final Numbering numbering;
+        private java.util.List<DiagramPage> pages;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(buffer);
+        private final java.util.List<AbstractPicture> entries = new ArrayList<>();
+    }
+
+
+    private class Replayer {
+
+        Replayer(DataInputStream input) {
+            this.input = input;
+        }
+
+        void replay(java.util.List<DiagramPage> pages) throws IOException {
+            this.pages = pages;
+            DiagramPage page = page(input.readInt());
+            numbering = numbering(page);
+            book.pageModified(page);
+            int count = input.readInt();
+            for (int i = 0; i < count; ++i) {
+                replayEntry(page);
+            }
+        }
+
+        private void replayEntry(DiagramPage page) throws IOException {
+            AbstractPicture picture;
+            Edge edge = null;
+            if (input.readBoolean()) {
+                picture = createPicture(readString());
+                if (picture instanceof VertexPicture) {
+                    ((VertexPicture) picture).setVertex(readVertex());
+                }
+                else if (input.readBoolean()) {
+                    edge = readXml(Edge.class);
+                }
+                newPictureReferences.put(picture, newReference(newPictures.size()));
+                newPictures.add(picture);
+            }
+            else {
+                picture = picture(input.readInt());
+            }
+            boolean onPage = input.readBoolean();
+            if (picture instanceof VertexPicture) {
+                replayState((VertexPicture) picture);
+            }
+            else {
+                replayState((EdgePicture) picture, edge);
+            }
+            readExtension(picture);
+            if (onPage && ! page.contains(picture)) {
+                add(page, picture);
+            }
+            else if (! onPage) {
+                remove(page, picture);
+            }
+        }
+
+        private void replayState(VertexPicture picture) throws IOException {
+            picture.setLocation((input.readBoolean()) ? new Point(input.readInt(), input.readInt()) : null);
+            picture.setSize((input.readBoolean()) ? new Dimension(input.readInt(), input.readInt()) : null);
+        }
+
+        private void replayState(EdgePicture picture, Edge edge) throws IOException {
+            picture.setOriginPicture((VertexPicture) picture(input.readInt()));
+            picture.setTerminusPicture((VertexPicture) picture(input.readInt()));
+            picture.setXPoints(readInts());
+            picture.setYPoints(readInts());
+            picture.setOriginAttachmentIndex(input.readInt());
+            picture.setTerminusAttachmentIndex(input.readInt());
+            if (edge != null) {
+                try {
+                    edge.init(picture.getOriginPicture().getVertex(), picture.getTerminusPicture().getVertex());
+                    picture.setEdge(edge);
+                }
+                catch (NullPointerException ex) {
+                    throw new IOException("Edge without ends " + edge.getClass().getName(), ex);
+                }
+            }
+        }
+
+        private void add(DiagramPage page, AbstractPicture picture) {
+            if (picture instanceof VertexPicture) {
+                page.add((VertexPicture) picture);
+            }
+            else {
+                page.add((EdgePicture) picture);
+            }
+        }
+
+        private void remove(DiagramPage page, AbstractPicture picture) {
+            if (picture instanceof VertexPicture) {
+                page.remove((VertexPicture) picture);
+            }
+            else {
+                page.remove((EdgePicture) picture);
+            }
+        }
+
+        private Vertex readVertex() throws IOException {
+            int reference = input.readInt();
+            if (reference == NULL_REFERENCE) {
+                return null;
+            }
+            try {
+                if (reference >= 0 && reference != NEW_VERTEX) {
+                    int number = input.readInt();
+                    return numbering(page(reference)).vertices.get(number);
+                }
+                if (reference != NEW_VERTEX) {
+                    return newVertices.get(newIndex(reference));
+                }
+            }
+            catch (IndexOutOfBoundsException ex) {
+                throw new IOException("Invalid vertex reference " + reference, ex);
+            }
+            Vertex vertex = readXml(Vertex.class);
+            newVertexReferences.put(vertex, newReference(newVertices.size()));
+            newVertices.add(vertex);
+            book.modelModified();
+            return vertex;
+        }
+
+        private <T> T readXml(Class<T> type) throws IOException {
+            int length = input.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid " + type.getSimpleName() + " length " + length);
+            }
+            byte[] xml = new byte[length];
+            input.readFully(xml);
+            try (XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(xml))) {
+                return type.cast(decoder.readObject());
+            }
+            catch (RuntimeException ex) {
+                throw new IOException("Invalid " + type.getSimpleName(), ex);
+            }
+        }
+
+        private AbstractPicture picture(int reference) throws IOException {
+            try {
+                if (reference == NULL_REFERENCE) {
+                    return null;
+                }
+                return (reference >= 0) ? numbering.pictures.get(reference) : newPictures.get(newIndex(reference));
+            }
+            catch (IndexOutOfBoundsException ex) {
+                throw new IOException("Invalid picture reference " + reference, ex);
+            }
+        }
+
+        private DiagramPage page(int pageNumber) throws IOException {
+            if (pageNumber < 0 || pages.size() <= pageNumber) {
+                throw new IOException("Invalid page number " + pageNumber);
+            }
+            return pages.get(pageNumber);
+        }
+
+        private AbstractPicture createPicture(String className) throws IOException {
+            Class pictureClass = loadClass(className);
+            try {
+                return (AbstractPicture) pictureClass.newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException ex) {
+                throw new IOException("Cannot create " + className, ex);
+            }
+        }
+
+        private Class loadClass(String className) throws IOException {
+            try {
+                return Class.forName(className, true, Thread.currentThread().getContextClassLoader());
+            }
+            catch (ClassNotFoundException ex) {
+                throw new IOException("Unknown class " + className, ex);
+            }
+        }
+
+        private void readExtension(AbstractPicture picture) throws IOException {
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            BinaryPersistenceDelegate delegate = book.getBinaryPersistenceDelegates().get(picture.getClass());
+            if (delegate != null) {
+                delegate.read(picture, new DataInputStream(new ByteArrayInputStream(bytes)));
+            }
+        }
+
+        private int[] readInts() throws IOException {
+            int length = input.readInt();
+            if (length == NULL_REFERENCE) {
+                return null;
+            }
+            int[] values = new int[length];
+            for (int i = 0; i < length; ++i) {
+                values[i] = input.readInt();
+            }
+            return values;
+        }
+
+        private String readString() throws IOException {
+            int length = input.readInt();
+            if (length == NULL_REFERENCE) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private final DataInputStream input;
+        private java.util.List<DiagramPage> pages;
+        private Numbering numbering;
+    }
+
+
+    /**
+     * Pictures and vertices of a page as stored in the book file, in drawing order, vertex pictures before edge pictures.
+     * End pictures of edges on the page are numbered with the page, also when they are not on the page.
+     */
+    private class Numbering {
+
+        void number(DiagramPage page) {
+            Collection<VertexPicture> pageVertices = page.getVertices();
+            if (pageVertices != null) {
+                for (VertexPicture picture : pageVertices) {
+                    number(page, picture);
+                }
+            }
+            Collection<EdgePicture> pageEdges = page.getEdges();
+            if (pageEdges != null) {
+                for (EdgePicture picture : pageEdges) {
+                    if (picture.getOriginPicture() != null) {
+                        number(page, picture.getOriginPicture());
+                    }
+                    if (picture.getTerminusPicture() != null) {
+                        number(page, picture.getTerminusPicture());
+                    }
+                    if (! references.containsKey(picture)) {
+                        references.put(picture, pictures.size());
+                        pictures.add(picture);
+                    }
+                }
+            }
+        }
+
+        private void number(DiagramPage page, VertexPicture picture) {
+            if (! references.containsKey(picture)) {
+                references.put(picture, pictures.size());
+                pictures.add(picture);
+                Vertex vertex = picture.getVertex();
+                if (vertex != null && ! vertexNumbers.containsKey(vertex)) {
+                    vertexNumbers.put(vertex, vertices.size());
+                    vertices.add(vertex);
+                    if (! vertexReferences.containsKey(vertex)) {
+                        vertexReferences.put(vertex, new VertexReference(page, vertices.size() - 1));
+                    }
+                }
+            }
+        }
+
+        final ArrayList<AbstractPicture> pictures = new ArrayList<>();
+        final Map<AbstractPicture, Integer> references = new IdentityHashMap<>();
+        final ArrayList<Vertex> vertices = new ArrayList<>();
+        private final Map<Vertex, Integer> vertexNumbers = new IdentityHashMap<>();
+    }
+
+
+    private static class VertexReference {
+
+        VertexReference(DiagramPage page, int number) {
+            this.page = page;
+            this.number = number;
+        }
+
+        final DiagramPage page;
+        final int number;
+    }
+
+
+    private static class Stamp {
+
+        Stamp(File file) {
+            this(file.length(), file.lastModified());
+        }
+
+        Stamp(long length, long modified) {
+            this.length = length;
+            this.modified = modified;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (! (other instanceof Stamp)) {
+                return false;
+            }
+            Stamp stamp = (Stamp) other;
+            return length == stamp.length && modified == stamp.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(length, modified);
+        }
+
+        final long length;
+        final long modified;
+    }
+
+
+    /**
+     * New pictures and vertices are referred to by negative numbers, so their references do not depend
+     * on the number of pictures and vertices in the book file.
+     */
+    private static int newReference(int index) {
+        return -index - 2;
+    }
+
+
+    private static int newIndex(int reference) {
+        return -reference - 2;
+    }
+
+
+    private final Book book;
+    private final File bookFile;
+    private final File journalFile;
+
+    private final Map<DiagramPage, Numbering> numberings = new IdentityHashMap<>();
+    private final ArrayList<AbstractPicture> newPictures = new ArrayList<>();
+    private final Map<AbstractPicture, Integer> newPictureReferences = new IdentityHashMap<>();
+    private final ArrayList<Vertex> newVertices = new ArrayList<>();
+    private final Map<Vertex, Integer> newVertexReferences = new IdentityHashMap<>();
+    private final Map<Vertex, VertexReference> vertexReferences = new IdentityHashMap<>(); // Vertices in the book file
+
+    private final Book.PageListener pageListener = new Book.PageListener() {
+
+        @Override
+        public void pageLoaded(DiagramPage page) {
+            BookJournal.this.pageLoaded(page);
+        }
+
+        @Override
+        public void pageReleased(DiagramPage page) {
+            synchronized (lock) {
+                numberings.remove(page); // Numbered again when loaded again
+            }
+        }
+
+    };
+
+    private int recordCount;
+    private boolean complete;
+    private boolean compactionPending;
+    private boolean behind; // Changes are made that the journal does not hold
+
+    // Accessed by the journal thread only, once loading or recovery is done
+    private volatile Stamp stamp;
+    private FileOutputStream output;
+    private boolean initialized;
+
+    private volatile Consumer<Exception> failureHandler;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Book journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Object lock = new Object();
+
+    private static final String SUFFIX = ".journal";
+    private static final String FAILED_SUFFIX = ".failed";
+    private static final int MAGIC = 0x424B474A; // "BKGJ"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int NULL_REFERENCE = -1;
+    private static final int NEW_VERTEX = Integer.MAX_VALUE;
+    private static final int COMPACTION_RECORD_COUNT = 10000;
+    private static final int CLOSE_TIMEOUT = 60; // seconds
+
+}
@@ -5,12 +5,21 @@
 package bka.graph.document;
 
 import bka.graph.swing.*;
+import java.io.*;
 import java.util.*;
 import java.util.logging.*;
 
 
 public class DiagramPage {
 
+
+    /**
+     * Sets the content of a page that is stored but not loaded yet.
+     */
+    interface Loader {
+        void load(DiagramPage page) throws IOException;
+    }
+
     
     public DiagramPage() {
     }
@@ -34,27 +43,42 @@ public class DiagramPage {
     }
 
     
+    /**
+     * The content of a page of an opened book is loaded when it is accessed for the first time.
+     * Pages are loaded by the thread that accesses them, like pages in general they are not thread safe.
+     * @return true if vertices and edges of this page are in memory
+     */
+    public boolean isLoaded() {
+        return loader == null;
+    }
+
+    
     public Collection<VertexPicture> getVertices() {
+        load();
         return (vertices != null) ? new ArrayList<>(vertices) : null;
     }
 
     
     public void setVertices(Collection<VertexPicture> vertices) {
+        load();
         this.vertices = (vertices != null) ? new LinkedHashSet<>(vertices) : null;
     }
 
 
     public Collection<EdgePicture> getEdges() {
+        load();
         return (edges != null) ? new ArrayList<>(edges) : null;
     }
 
     
     public void setEdges(Collection<EdgePicture> edges) {
+        load();
         this.edges = (edges != null) ? new LinkedHashSet<>(edges) : null;
     }
     
     
     public void add(VertexPicture vertex) {
+        load();
         if (! vertices.add(vertex)) {
             Logger.getLogger(DiagramPage.class.getName()).log(Level.WARNING, "Duplicate vertex {0}", vertex);
         }
@@ -62,11 +86,13 @@ public class DiagramPage {
 
 
     public void remove(VertexPicture vertex) {
+        load();
         vertices.remove(vertex);
     }
 
 
     public void add(EdgePicture edge) {
+        load();
         if (! edges.add(edge)) {
             Logger.getLogger(DiagramPage.class.getName()).log(Level.WARNING, "Duplicate edge {0}", edge);
         }
@@ -74,11 +100,19 @@ public class DiagramPage {
 
 
     public void remove(EdgePicture edge) {
+        load();
         edges.remove(edge);
     }
 
 
+    public boolean contains(AbstractPicture picture) {
+        load();
+        return (picture instanceof VertexPicture) ? vertices.contains(picture) : edges.contains(picture);
+    }
+
+
     VertexPicture findContainer(VertexPicture vertex) {
+        load();
         for (VertexPicture picture : vertices) {
             if (vertex != picture && picture.contains(vertex)) {
                 return picture;
@@ -88,9 +122,49 @@ public class DiagramPage {
     }
 
 
+    /**
+     * Drops vertices and edges, loader sets them again when they are accessed.
+     * @param loader
+     */
+    void unload(Loader loader) {
+        vertices = null;
+        edges = null;
+        this.loader = loader;
+    }
+
+
+    /**
+     * Sets vertices and edges, used by loaders.
+     */
+    void setContent(Collection<VertexPicture> vertices, Collection<EdgePicture> edges) {
+        this.vertices = (vertices != null) ? new LinkedHashSet<>(vertices) : null;
+        this.edges = (edges != null) ? new LinkedHashSet<>(edges) : null;
+    }
+
+
+    private void load() {
+        if (loader != null) {
+            Loader pageLoader = loader;
+            loader = null;
+            try {
+                pageLoader.load(this);
+            }
+            catch (IOException ex) {
+                loader = pageLoader;
+                throw new UncheckedIOException("Cannot load page " + title, ex);
+            }
+            catch (RuntimeException ex) {
+                loader = pageLoader;
+                throw ex;
+            }
+        }
+    }
+
+
     private String title;
     // LinkedHashSet to keep drawing order and to avoid duplicate pictures
     private LinkedHashSet<VertexPicture> vertices;
     private LinkedHashSet<EdgePicture> edges;
+    private volatile Loader loader; // Set by the thread that opens the book
 
 }
@@ -0,0 +1,133 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.document;
+
+import bka.graph.swing.*;
+import java.awt.*;
+import java.beans.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+
+/**
+ * Copies pages with their pictures, so the copies can be encoded by another thread while the pages change.
+ * A picture is copied by its bean properties, which are the properties the XML encoder writes by default.
+ * Points, dimensions, rectangles and arrays are copied, pictures are replaced by their copies and other values,
+ * like vertices and edges, are shared with the original.
+ */
+class PageCopier {
+
+
+    /**
+     * @param persistenceDelegates of the XML encoder
+     */
+    PageCopier(Map<Class, PersistenceDelegate> persistenceDelegates) {
+        this.persistenceDelegates = (persistenceDelegates != null) ? persistenceDelegates : Collections.emptyMap();
+    }
+
+
+    /**
+     * @param pages
+     * @return true if the XML encoder writes the copies of the pictures on pages like the pictures themselves,
+     * which is not the case for pictures with a persistence delegate of their own
+     */
+    boolean canCopy(Collection<DiagramPage> pages) {
+        for (DiagramPage page : pages) {
+            for (Collection<? extends AbstractPicture> pictures : Arrays.asList(page.getVertices(), page.getEdges())) {
+                if (pictures != null) {
+                    for (AbstractPicture picture : pictures) {
+                        if (persistenceDelegates.containsKey(picture.getClass())) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
+    DiagramPage copy(DiagramPage page) throws IOException {
+        DiagramPage copy = new DiagramPage();
+        copy.setTitle(page.getTitle());
+        copy.setContent(copy(page.getVertices()), copy(page.getEdges()));
+        return copy;
+    }
+
+
+    /**
+     * @param original
+     * @return copy of original if original is a picture copied by this copier, otherwise original
+     */
+    Object copyOf(Object original) {
+        AbstractPicture copy = copies.get(original);
+        return (copy != null) ? copy : original;
+    }
+
+
+    private <P extends AbstractPicture> Collection<P> copy(Collection<P> pictures) throws IOException {
+        if (pictures == null) {
+            return null;
+        }
+        Collection<P> copy = new ArrayList<>();
+        for (P picture : pictures) {
+            copy.add(copy(picture));
+        }
+        return copy;
+    }
+
+
+    private <P extends AbstractPicture> P copy(P original) throws IOException {
+        P copy = (P) copies.get(original);
+        if (copy == null) {
+            try {
+                copy = (P) original.getClass().getConstructor().newInstance();
+                copies.put(original, copy); // Before copying properties that refer back to original
+                for (PropertyDescriptor property : Introspector.getBeanInfo(original.getClass()).getPropertyDescriptors()) {
+                    Method getter = property.getReadMethod();
+                    Method setter = property.getWriteMethod();
+                    if (getter != null && setter != null) {
+                        setter.invoke(copy, copyValue(getter.invoke(original)));
+                    }
+                }
+            }
+            catch (ReflectiveOperationException | IntrospectionException ex) {
+                throw new IOException("Cannot copy " + original.getClass().getName(), ex);
+            }
+        }
+        return copy;
+    }
+
+
+    private Object copyValue(Object value) throws IOException {
+        if (value instanceof AbstractPicture) {
+            return copy((AbstractPicture) value);
+        }
+        if (value instanceof Point) {
+            return new Point((Point) value);
+        }
+        if (value instanceof Dimension) {
+            return new Dimension((Dimension) value);
+        }
+        if (value instanceof Rectangle) {
+            return new Rectangle((Rectangle) value);
+        }
+        if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            for (int i = 0; i < length; ++i) {
+                Array.set(copy, i, copyValue(Array.get(value, i)));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+
+    private final Map<Class, PersistenceDelegate> persistenceDelegates;
+    private final Map<AbstractPicture, AbstractPicture> copies = new IdentityHashMap<>();
+
+}
@@ -0,0 +1,1515 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.document;
+
+import bka.awt.*;
+import bka.graph.*;
+import bka.graph.swing.*;
+import java.awt.*;
+import java.beans.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.logging.*;
+import java.util.zip.*;
+
+
+/**
+ * Binary book format version 4, a container with one segment per page, so a save writes only the pages
+ * changed since the previous save.
+ *
+ * Layout:
+ * header with magic, version and the location and checksum of the index, followed by segments.
+ * The index holds the page index, the location of the model and page segments and the customized draw styles.
+ * The model segments hold the vertices and edges of all pages as XML documents, with a stable identifier
+ * each, so their persistence delegates apply and their identity is kept across pages. A page segment holds
+ * the title and the pictures of a page, vertices and edges are referred to by identifier.
+ *
+ * A save appends a model segment with the new and modified vertices and edges only, an object in a later model
+ * segment supersedes the object with the same identifier in earlier ones. Edges are stored with the identifiers
+ * of their ends, so they are attached to the vertices that supersede their ends when read. The model is written
+ * in one segment again when the model segments accumulate.
+ *
+ * A save appends changed segments and a new index to the file, then rewrites the header. Segments that are
+ * not referred to anymore remain in the file until it is rewritten, which happens when they outweigh the
+ * segments in use.
+ *
+ * Files are read segment by segment into heap buffers, so no file mapping outlives a load and the file can be
+ * replaced by a rewrite. An opened book keeps its file open and decodes a page when its content is accessed,
+ * pages that are not modified can be unloaded again, so books larger than the heap can be browsed.
+ */
+class PagedBookFormat {
+
+
+    /**
+     * @param persistenceDelegates
+     * @param binaryDelegates
+     * @param loadListener accepts pages of opened books after their content is decoded
+     */
+    PagedBookFormat(Map<Class, PersistenceDelegate> persistenceDelegates, Map<Class, BinaryPersistenceDelegate> binaryDelegates, Consumer<DiagramPage> loadListener) {
+        this.persistenceDelegates = persistenceDelegates;
+        this.binaryDelegates = (binaryDelegates != null) ? binaryDelegates : Collections.emptyMap();
+        this.loadListener = loadListener;
+    }
+
+
+    /**
+     * @param file
+     * @return true if file is a paged book
+     * @throws IOException
+     */
+    static boolean isPaged(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readInt() == MAGIC && input.readInt() == VERSION;
+        }
+        catch (EOFException ex) {
+            return false;
+        }
+    }
+
+
+    /**
+     * @param pages
+     * @return true if all pictures on pages are stored completely by this format, pages that are not loaded are.
+     */
+    boolean canWrite(Collection<DiagramPage> pages) {
+        for (DiagramPage page : pages) {
+            if (page.isLoaded()) {
+                for (AbstractPicture picture : pictures(page)) {
+                    if (picture.getClass() != VertexPicture.class && picture.getClass() != EdgePicture.class && ! binaryDelegates.containsKey(picture.getClass())) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Encodes the changes of pages since they were read from or written to file. All loaded pages are encoded
+     * if file is another file, pages that are not loaded are copied from the file they are stored in.
+     * Pages are encoded on the calling thread, the vertices, edges and draw styles they refer to are collected
+     * and left to the update to encode.
+     * Must be called by one thread at a time, the update may be written by another thread.
+     * @param file
+     * @param pages
+     * @param pageIndex
+     * @param drawStyles
+     * @param dirtyPages pages changed since the previous update
+     * @param modelDirty true if the whole model is to be written
+     * @param modelPictures pictures whose vertex or edge is changed since the previous update
+     * @return update to write to file
+     * @throws IOException
+     */
+    Book.Update prepare(File file, java.util.List<DiagramPage> pages, int pageIndex, Map<Object, DrawStyle> drawStyles, Collection<DiagramPage> dirtyPages, boolean modelDirty, Collection<AbstractPicture> modelPictures) throws IOException {
+        boolean incremental = file.equals(encodedFile) && ! writeFailed;
+        if (! incremental) {
+            encodedPages.clear();
+            if (allLoaded(pages)) { // Pages not loaded refer to the identifiers they are stored with
+                modelIds.clear();
+                synchronized (lock) {
+                    modelObjects.clear();
+                }
+            }
+            writeFailed = false;
+        }
+        ModelDelta delta = new ModelDelta();
+        Map<DiagramPage, byte[]> payloads = new IdentityHashMap<>();
+        for (DiagramPage page : pages) {
+            if (dirtyPages.contains(page) || page.isLoaded() && ! encodedPages.contains(page)) {
+                payloads.put(page, new PageWriter(delta).write(page));
+            }
+        }
+        boolean modelReplaced = modelDirty || ! incremental || encodedModelSegments >= MODEL_SEGMENT_LIMIT;
+        ModelWriter model = null;
+        if (! modelReplaced) {
+            for (AbstractPicture picture : modelPictures) {
+                Object object = modelObjectOf(picture);
+                if (object != null && modelIds.containsKey(object)) {
+                    delta.add(object, picture);
+                }
+            }
+            if (! delta.isEmpty()) {
+                model = writeModelDelta(delta);
+                modelReplaced = model == null;
+            }
+        }
+        if (modelReplaced) {
+            model = writeModel(pages);
+            encodedModelSegments = 1;
+        }
+        else if (model != null) {
+            encodedModelSegments++;
+        }
+        StyleWriter styles = writeStyles(pages, drawStyles);
+        encodedFile = file;
+        encodedPages.clear();
+        encodedPages.addAll(pages);
+        synchronized (lock) {
+            pendingUpdates++;
+        }
+        return new Update(file, incremental, new ArrayList<>(pages), payloads, model, modelReplaced, pageIndex, styles);
+    }
+
+
+    /**
+     * File is written in another format, the next update for file encodes all pages.
+     * @param file
+     */
+    void replaced(File file) {
+        if (file.equals(encodedFile)) {
+            encodedFile = null;
+        }
+    }
+
+
+    /**
+     * Decodes pages concurrently by the common ForkJoinPool and hands them to consumer in order, each page as
+     * soon as it and the pages before it are decoded. The model is decoded first, pages refer to its vertices and
+     * edges so a vertex on several pages is one object. Customized draw styles of the pictures on a page are
+     * applied before the page is handed over.
+     * @param file
+     * @param consumer
+     * @return page index
+     * @throws IOException
+     */
+    int read(File file, Consumer<DiagramPage> consumer) throws IOException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Index index = readIndex(input);
+            Model model = readModel(input, index.models);
+            Map<Integer, Object> objects = model.objects;
+            ArrayList<java.util.List<StyleEntry>> styleEntries = styleEntries(index);
+            ArrayList<DiagramPage> pages = new ArrayList<>();
+            Deque<ForkJoinTask<PageReader>> decodings = new ArrayDeque<>();
+            int pageCount = index.pages.size();
+            int submitted = 0;
+            try {
+                for (int pageNumber = 0; pageNumber < pageCount; ++pageNumber) {
+                    while (submitted < pageCount && decodings.size() < DECODE_WINDOW) {
+                        ByteBuffer segment = read(input, index.pages.get(submitted));
+                        decodings.add(ForkJoinPool.commonPool().submit(() -> {
+                            PageReader reader = new PageReader(new BufferInput(segment), objects::get, classLoader);
+                            reader.read();
+                            return reader;
+                        }));
+                        submitted++;
+                    }
+                    PageReader reader = join(decodings.remove());
+                    Map<Object, DrawStyle> drawStyles = reader.drawStyles(styleEntries.get(pageNumber));
+                    if (! drawStyles.isEmpty()) {
+                        DrawStyleManager.getInstance().setDrawStyles(drawStyles);
+                    }
+                    pages.add(reader.page);
+                    consumer.accept(reader.page);
+                }
+            }
+            finally {
+                for (ForkJoinTask<PageReader> decoding : decodings) {
+                    decoding.cancel(false);
+                }
+            }
+            synchronized (lock) {
+                closeChannel();
+            }
+            loaded(file, index, pages, model);
+            return index.pageIndex;
+        }
+    }
+
+
+    /**
+     * Opens file and hands its pages to consumer without decoding their content. Titles are read at once,
+     * the content of a page is read from the file and decoded when it is accessed for the first time and
+     * customized draw styles of its pictures are applied then. The model is decoded first, pages refer
+     * to its vertices and edges so a vertex on several pages is one object.
+     * The file stays open until this format is closed.
+     * @param file
+     * @param consumer
+     * @return page index
+     * @throws IOException
+     */
+    int open(File file, Consumer<DiagramPage> consumer) throws IOException {
+        FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        Index index;
+        ArrayList<DiagramPage> pages = new ArrayList<>();
+        Model model;
+        ArrayList<java.util.List<StyleEntry>> styleEntries;
+        try {
+            index = readIndex(input);
+            model = readModel(input, index.models);
+            styleEntries = styleEntries(index);
+            for (Segment segment : index.pages) {
+                DiagramPage page = new DiagramPage();
+                page.setTitle(new PageReader(new BufferInput(read(input, segment)), model.objects::get, null).readTitle());
+                page.unload(this::load);
+                pages.add(page);
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            input.close();
+            throw ex;
+        }
+        synchronized (lock) {
+            closeChannel();
+            channel = input;
+            channelFile = file;
+        }
+        loaded(file, index, pages, model);
+        for (int i = 0; i < pages.size(); ++i) {
+            storedStyles.put(pages.get(i), styleEntries.get(i));
+        }
+        for (DiagramPage page : pages) {
+            consumer.accept(page);
+        }
+        return index.pageIndex;
+    }
+
+
+    /**
+     * Drops vertices and edges of page from memory, they are decoded from the stored file again when they are accessed.
+     * Customized draw styles of the pictures on page are kept with the page meanwhile.
+     * @param file the book is loaded from or saved to
+     * @param page not modified since
+     * @return false if the content of page is not stored in file yet
+     */
+    boolean unload(File file, DiagramPage page) {
+        synchronized (lock) {
+            if (! file.equals(storedFile) || pendingUpdates > 0 || writeFailed || ! pageSegments.containsKey(page)) {
+                return false;
+            }
+        }
+        Map<Object, DrawStyle> drawStyles = DrawStyleManager.getInstance().getCustomizedDrawStyles();
+        java.util.List<StyleEntry> entries = new ArrayList<>();
+        java.util.List<AbstractPicture> pictures = new ArrayList<>();
+        for (boolean edge : new boolean[] { false, true }) {
+            Collection<? extends AbstractPicture> pagePictures = (edge) ? page.getEdges() : page.getVertices();
+            if (pagePictures != null) {
+                int number = 0;
+                for (AbstractPicture picture : pagePictures) {
+                    DrawStyle style = drawStyles.get(picture);
+                    if (style != null) {
+                        entries.add(new StyleEntry(edge, number, style));
+                    }
+                    pictures.add(picture);
+                    number++;
+                }
+            }
+        }
+        DrawStyleManager.getInstance().unloadDrawStyles(pictures);
+        storedStyles.put(page, entries);
+        page.unload(this::load);
+        return true;
+    }
+
+
+    /**
+     * Closes the stored file, it is opened again when a page that is not loaded is accessed.
+     */
+    void close() {
+        synchronized (lock) {
+            closeChannel();
+        }
+    }
+
+
+    private void loaded(File file, Index index, java.util.List<DiagramPage> pages, Model model) {
+        synchronized (lock) {
+            layoutFile = file;
+            storedFile = file;
+            pageSegments.clear();
+            for (int i = 0; i < pages.size(); ++i) {
+                pageSegments.put(pages.get(i), index.pages.get(i));
+            }
+            modelSegments.clear();
+            modelSegments.addAll(index.models);
+            indexSegment = index.segment;
+            modelObjects.clear();
+            modelObjects.putAll(model.objects);
+        }
+        encodedFile = file;
+        encodedPages.clear();
+        encodedPages.addAll(pages);
+        encodedModelSegments = index.models.size();
+        storedStyles.clear();
+        modelIds.clear();
+        for (Map.Entry<Integer, Object> entry : model.objects.entrySet()) {
+            modelIds.put(entry.getValue(), entry.getKey());
+            nextModelId = Math.max(nextModelId, entry.getKey() + 1);
+        }
+        modelEnds.clear();
+        modelEnds.putAll(model.ends);
+    }
+
+
+    /**
+     * Decodes the content of a page that is not loaded, on the thread that accesses the page.
+     */
+    private void load(DiagramPage page) throws IOException {
+        ByteBuffer segment;
+        synchronized (lock) {
+            Segment location = pageSegments.get(page);
+            if (location == null) {
+                throw new IOException("Page not stored");
+            }
+            if (channel == null || ! storedFile.equals(channelFile)) {
+                closeChannel();
+                channel = FileChannel.open(storedFile.toPath(), StandardOpenOption.READ);
+                channelFile = storedFile;
+            }
+            segment = read(channel, location);
+        }
+        PageReader reader = new PageReader(new BufferInput(segment), this::modelObject, Thread.currentThread().getContextClassLoader());
+        reader.load(page);
+        java.util.List<StyleEntry> entries = storedStyles.remove(page);
+        if (entries != null && ! entries.isEmpty()) {
+            DrawStyleManager.getInstance().loadDrawStyles(reader.drawStyles(entries));
+        }
+        if (loadListener != null) {
+            loadListener.accept(page);
+        }
+    }
+
+
+    private Object modelObject(Integer id) {
+        synchronized (lock) {
+            return modelObjects.get(id);
+        }
+    }
+
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException ex) {
+                Logger.getLogger(PagedBookFormat.class.getName()).log(Level.WARNING, channelFile.toString(), ex);
+            }
+            channel = null;
+            channelFile = null;
+        }
+    }
+
+
+    private static boolean allLoaded(Collection<DiagramPage> pages) {
+        for (DiagramPage page : pages) {
+            if (! page.isLoaded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Collects all vertices and edges for one model segment.
+     */
+    private ModelWriter writeModel(java.util.List<DiagramPage> pages) throws IOException {
+        ModelDelta model = new ModelDelta();
+        Map<Object, Integer> referencedIds = new IdentityHashMap<>();
+        boolean complete = true;
+        for (DiagramPage page : pages) {
+            if (! page.isLoaded()) {
+                complete = false;
+                continue;
+            }
+            for (AbstractPicture picture : pictures(page)) {
+                if (picture instanceof EdgePicture) {
+                    EdgePicture edgePicture = (EdgePicture) picture;
+                    for (VertexPicture end : Arrays.asList(edgePicture.getOriginPicture(), edgePicture.getTerminusPicture())) {
+                        if (end != null && end.getVertex() != null) {
+                            referencedIds.put(end.getVertex(), modelId(end.getVertex()));
+                            model.add(end.getVertex(), end);
+                        }
+                    }
+                }
+                Object object = modelObjectOf(picture);
+                if (object != null) {
+                    referencedIds.put(object, modelId(object));
+                    model.add(object, picture);
+                }
+            }
+        }
+        Map<Integer, int[]> previousEnds = new HashMap<>(modelEnds);
+        modelEnds.clear();
+        ModelWriter writer = new ModelWriter();
+        for (int i = 0; i < model.objects.size(); ++i) {
+            Object object = model.objects.get(i);
+            writer.add(modelIds.get(object), object, ends(object, model.pictures.get(i)));
+        }
+        if (complete) {
+            modelIds.keySet().retainAll(referencedIds.keySet()); // Objects not in the model get a new identifier when referred to again
+            synchronized (lock) {
+                modelObjects.values().removeIf(object -> ! referencedIds.containsKey(object));
+            }
+        }
+        else { // Pages not loaded may refer to any object in the model
+            for (Map.Entry<Object, Integer> entry : modelIds.entrySet()) {
+                if (! referencedIds.containsKey(entry.getKey())) {
+                    int[] ends = previousEnds.get(entry.getValue());
+                    writer.add(entry.getValue(), entry.getKey(), (ends != null) ? ends : NO_ENDS);
+                }
+            }
+        }
+        return writer;
+    }
+
+
+    /**
+     * Collects the vertices and edges of delta only, they supersede the objects with the same identifiers in the
+     * model segments written before.
+     * @return null if an edge of delta ends at a vertex without identifier
+     */
+    private ModelWriter writeModelDelta(ModelDelta delta) throws IOException {
+        ModelWriter writer = new ModelWriter();
+        for (int i = 0; i < delta.objects.size(); ++i) {
+            Object object = delta.objects.get(i);
+            int[] ends = ends(object, delta.pictures.get(i));
+            if (ends == null) {
+                return null;
+            }
+            writer.add(modelId(object), object, ends);
+        }
+        return writer;
+    }
+
+
+    private static Object modelObjectOf(AbstractPicture picture) {
+        if (picture instanceof VertexPicture) {
+            return ((VertexPicture) picture).getVertex();
+        }
+        if (picture instanceof EdgePicture) {
+            return ((EdgePicture) picture).getEdge();
+        }
+        return null;
+    }
+
+
+    /**
+     * @param object vertex or edge
+     * @param picture showing object
+     * @return identifiers of the vertices at the ends of edge object, null if such a vertex has no identifier
+     */
+    private int[] ends(Object object, AbstractPicture picture) {
+        if (! (picture instanceof EdgePicture) || ((EdgePicture) picture).getEdge() != object) {
+            return NO_ENDS;
+        }
+        EdgePicture edgePicture = (EdgePicture) picture;
+        VertexPicture origin = edgePicture.getOriginPicture();
+        VertexPicture terminus = edgePicture.getTerminusPicture();
+        if (origin == null || origin.getVertex() == null || terminus == null || terminus.getVertex() == null) {
+            return NO_ENDS;
+        }
+        Integer originId = modelIds.get(origin.getVertex());
+        Integer terminusId = modelIds.get(terminus.getVertex());
+        if (originId == null || terminusId == null) {
+            return null;
+        }
+        return new int[] { originId, terminusId };
+    }
+
+
+    private static PageReader join(ForkJoinTask<PageReader> decoding) throws IOException {
+        try {
+            return decoding.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Page decoding interrupted");
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Page decoding failed", ex.getCause());
+        }
+    }
+
+
+    private Model readModel(FileChannel input, java.util.List<Segment> segments) throws IOException {
+        Model model = new Model();
+        for (Segment segment : segments) {
+            model.decode(new BufferInput(read(input, segment)));
+        }
+        if (segments.size() > 1) {
+            model.attachEdges();
+        }
+        return model;
+    }
+
+
+    /**
+     * Styles are stored with the number of their page and the number of their picture on the page.
+     */
+    private StyleWriter writeStyles(java.util.List<DiagramPage> pages, Map<Object, DrawStyle> drawStyles) throws IOException {
+        ArrayList<DrawStyle> styles = new ArrayList<>();
+        ByteArrayOutputStream entryBuffer = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(entryBuffer);
+        Map<DiagramPage, Map<AbstractPicture, Integer>> pictureNumbers = new IdentityHashMap<>();
+        for (Map.Entry<Object, DrawStyle> entry : drawStyles.entrySet()) {
+            if (entry.getKey() instanceof AbstractPicture) {
+                AbstractPicture picture = (AbstractPicture) entry.getKey();
+                for (int pageNumber = 0; pageNumber < pages.size(); ++pageNumber) {
+                    DiagramPage page = pages.get(pageNumber);
+                    if (page.isLoaded() && page.contains(picture)) {
+                        entries.writeInt(pageNumber);
+                        entries.writeBoolean(picture instanceof EdgePicture);
+                        entries.writeInt(pictureNumbers.computeIfAbsent(page, PagedBookFormat::pictureNumbers).get(picture));
+                        entries.writeInt(styles.size());
+                        styles.add(entry.getValue());
+                        break;
+                    }
+                }
+            }
+        }
+        for (int pageNumber = 0; pageNumber < pages.size(); ++pageNumber) {
+            java.util.List<StyleEntry> pageEntries = storedStyles.get(pages.get(pageNumber));
+            if (pageEntries != null && ! pages.get(pageNumber).isLoaded()) {
+                for (StyleEntry entry : pageEntries) {
+                    entries.writeInt(pageNumber);
+                    entries.writeBoolean(entry.edge);
+                    entries.writeInt(entry.number);
+                    entries.writeInt(styles.size());
+                    styles.add(entry.style);
+                }
+            }
+        }
+        return new StyleWriter(styles, entryBuffer.toByteArray());
+    }
+
+
+    /**
+     * @return number of each vertex picture among the vertex pictures of page and of each edge picture among the
+     * edge pictures of page
+     */
+    private static Map<AbstractPicture, Integer> pictureNumbers(DiagramPage page) {
+        Map<AbstractPicture, Integer> numbers = new IdentityHashMap<>();
+        for (Collection<? extends AbstractPicture> pagePictures : Arrays.asList(page.getVertices(), page.getEdges())) {
+            if (pagePictures != null) {
+                int number = 0;
+                for (AbstractPicture picture : pagePictures) {
+                    numbers.put(picture, number++);
+                }
+            }
+        }
+        return numbers;
+    }
+
+
+    private ArrayList<DrawStyle> decodeStyles(byte[] xml) throws IOException {
+        try (XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(xml))) {
+            return (ArrayList<DrawStyle>) decoder.readObject();
+        }
+        catch (RuntimeException ex) {
+            throw new IOException("Invalid draw styles", ex);
+        }
+    }
+
+
+    private int modelId(Object object) {
+        Integer id = modelIds.get(object);
+        if (id == null) {
+            id = nextModelId++;
+            modelIds.put(object, id);
+            synchronized (lock) {
+                modelObjects.put(id, object);
+            }
+        }
+        return id;
+    }
+
+
+    private XMLEncoder createEncoder(OutputStream output) {
+        XMLEncoder encoder = new XMLEncoder(output);
+        if (persistenceDelegates != null) {
+            for (Map.Entry<Class, PersistenceDelegate> entry : persistenceDelegates.entrySet()) {
+                encoder.setPersistenceDelegate(entry.getKey(), entry.getValue());
+            }
+        }
+        return encoder;
+    }
+
+
+    private Index readIndex(FileChannel input) throws IOException {
+        if (input.size() < HEADER_SIZE) {
+            throw new IOException("Not a paged book");
+        }
+        DataInputStream header = new DataInputStream(new BufferInput(read(input, 0, HEADER_SIZE)));
+        if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+            throw new IOException("Not a paged book");
+        }
+        Segment indexSegment = new Segment(header.readLong(), header.readInt());
+        int checksum = header.readInt();
+        byte[] bytes = read(input, indexSegment).array();
+        if (checksum(bytes) != checksum) {
+            throw new IOException("Corrupt index");
+        }
+        return new Index(indexSegment, new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+
+    /**
+     * Draw styles with the pictures they belong to, by page.
+     */
+    private ArrayList<java.util.List<StyleEntry>> styleEntries(Index index) throws IOException {
+        ArrayList<DrawStyle> styles = decodeStyles(index.styles);
+        ArrayList<java.util.List<StyleEntry>> entries = new ArrayList<>();
+        for (ArrayList<int[]> pageEntries : index.styleEntries) {
+            java.util.List<StyleEntry> styleEntries = new ArrayList<>();
+            for (int[] entry : pageEntries) {
+                if (entry[2] < 0 || styles.size() <= entry[2]) {
+                    throw new IOException("Invalid draw style entry");
+                }
+                styleEntries.add(new StyleEntry(entry[0] != 0, entry[1], styles.get(entry[2])));
+            }
+            entries.add(styleEntries);
+        }
+        return entries;
+    }
+
+
+    private static ByteBuffer read(FileChannel input, Segment segment) throws IOException {
+        if (segment.offset < HEADER_SIZE || input.size() < segment.offset + segment.length) {
+            throw new IOException("Invalid segment at " + segment.offset);
+        }
+        return read(input, segment.offset, segment.length);
+    }
+
+
+    /**
+     * Copies bytes of input into a heap buffer, a mapped buffer would keep the file mapped until it is collected.
+     */
+    private static ByteBuffer read(FileChannel input, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Segment beyond end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private static byte[] readSegment(RandomAccessFile input, Segment segment) throws IOException {
+        if (segment.offset < HEADER_SIZE || input.length() < segment.offset + segment.length) {
+            throw new IOException("Invalid segment at " + segment.offset);
+        }
+        byte[] bytes = new byte[segment.length];
+        input.seek(segment.offset);
+        input.readFully(bytes);
+        return bytes;
+    }
+
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+
+    private static Collection<AbstractPicture> pictures(DiagramPage page) {
+        Collection<AbstractPicture> pictures = new ArrayList<>();
+        if (page.getVertices() != null) {
+            pictures.addAll(page.getVertices());
+        }
+        if (page.getEdges() != null) {
+            pictures.addAll(page.getEdges());
+        }
+        return pictures;
+    }
+
+
+    /**
+     * Changed segments to write, written by appending or by rewriting the file.
+     */
+    private class Update implements Book.Update {
+
+        /**
+         * @param modelWriter segment to add to the model, null if the model is not changed
+         * @param modelReplaced true if the model segment replaces the model segments written before
+         */
+        Update(File file, boolean incremental, java.util.List<DiagramPage> pages, Map<DiagramPage, byte[]> payloads, ModelWriter modelWriter, boolean modelReplaced, int pageIndex, StyleWriter styleWriter) {
+            this.file = file;
+            this.incremental = incremental;
+            this.pages = pages;
+            this.payloads = payloads;
+            this.modelWriter = modelWriter;
+            this.modelReplaced = modelReplaced;
+            this.pageIndex = pageIndex;
+            this.styleWriter = styleWriter;
+        }
+
+        @Override
+        public void write() throws IOException {
+            synchronized (lock) {
+                try {
+                    model = (modelWriter != null) ? modelWriter.toBytes() : null;
+                    styles = styleWriter.toBytes();
+                    if (incremental && file.equals(layoutFile) && file.length() <= REWRITE_FACTOR * usedLength()) {
+                        append();
+                    }
+                    else {
+                        rewrite();
+                    }
+                }
+                catch (IOException | RuntimeException ex) {
+                    writeFailed = true;
+                    layoutFile = null;
+                    throw ex;
+                }
+                finally {
+                    pendingUpdates--;
+                }
+            }
+        }
+
+        private void append() throws IOException {
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                output.seek(output.length());
+                Map<DiagramPage, Segment> segments = new IdentityHashMap<>();
+                for (DiagramPage page : pages) {
+                    byte[] payload = payloads.get(page);
+                    segments.put(page, (payload != null) ? write(output, payload) : stored(page));
+                }
+                java.util.List<Segment> modelLocations = new ArrayList<>();
+                if (! modelReplaced) {
+                    modelLocations.addAll(modelSegments);
+                }
+                if (model != null) {
+                    modelLocations.add(write(output, model));
+                }
+                byte[] index = index(segments, modelLocations);
+                Segment indexLocation = write(output, index);
+                output.getFD().sync();
+                output.seek(0);
+                output.write(header(indexLocation, index));
+                output.getFD().sync();
+                stored(segments, modelLocations, indexLocation);
+            }
+        }
+
+        /**
+         * Segments that are not encoded are copied from the file they are stored in, which may be another file.
+         */
+        private void rewrite() throws IOException {
+            File temporaryFile = new File(file.getPath() + TEMPORARY_SUFFIX);
+            Map<DiagramPage, Segment> segments = new IdentityHashMap<>();
+            java.util.List<Segment> modelLocations = new ArrayList<>();
+            Segment indexLocation;
+            RandomAccessFile source = null;
+            try (RandomAccessFile output = new RandomAccessFile(temporaryFile, "rw")) {
+                output.setLength(0);
+                output.seek(HEADER_SIZE);
+                for (DiagramPage page : pages) {
+                    byte[] payload = payloads.get(page);
+                    if (payload == null) {
+                        source = source(source);
+                        payload = readSegment(source, stored(page));
+                    }
+                    segments.put(page, write(output, payload));
+                }
+                if (! modelReplaced) {
+                    for (Segment segment : modelSegments) {
+                        source = source(source);
+                        modelLocations.add(write(output, readSegment(source, segment)));
+                    }
+                }
+                if (model != null) {
+                    modelLocations.add(write(output, model));
+                }
+                byte[] index = index(segments, modelLocations);
+                indexLocation = write(output, index);
+                output.seek(0);
+                output.write(header(indexLocation, index));
+                output.getFD().sync();
+            }
+            finally {
+                if (source != null) {
+                    source.close();
+                }
+            }
+            closeChannel(); // The stored file is replaced
+            try {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            layoutFile = file;
+            stored(segments, modelLocations, indexLocation);
+        }
+
+        private RandomAccessFile source(RandomAccessFile source) throws IOException {
+            if (source != null) {
+                return source;
+            }
+            if (storedFile == null) {
+                throw new IOException("Book not stored");
+            }
+            return new RandomAccessFile(storedFile, "r");
+        }
+
+        private Segment write(RandomAccessFile output, byte[] bytes) throws IOException {
+            Segment segment = new Segment(output.getFilePointer(), bytes.length);
+            output.write(bytes);
+            return segment;
+        }
+
+        private Segment stored(DiagramPage page) throws IOException {
+            Segment segment = pageSegments.get(page);
+            if (segment == null) {
+                throw new IOException("Page not stored");
+            }
+            return segment;
+        }
+
+        private void stored(Map<DiagramPage, Segment> segments, java.util.List<Segment> modelLocations, Segment indexLocation) {
+            storedFile = file;
+            pageSegments.clear();
+            pageSegments.putAll(segments);
+            modelSegments.clear();
+            modelSegments.addAll(modelLocations);
+            indexSegment = indexLocation;
+        }
+
+        private long usedLength() {
+            long length = HEADER_SIZE + indexSegment.length + styles.length + ((model != null) ? model.length : 0);
+            if (! modelReplaced) {
+                for (Segment segment : modelSegments) {
+                    length += segment.length;
+                }
+            }
+            for (DiagramPage page : pages) {
+                byte[] payload = payloads.get(page);
+                Segment segment = pageSegments.get(page);
+                length += (payload != null) ? payload.length : (segment != null) ? segment.length : 0;
+            }
+            return length;
+        }
+
+        private byte[] index(Map<DiagramPage, Segment> segments, java.util.List<Segment> modelLocations) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(buffer);
+            output.writeInt(pageIndex);
+            output.writeInt(modelLocations.size());
+            for (Segment modelLocation : modelLocations) {
+                output.writeLong(modelLocation.offset);
+                output.writeInt(modelLocation.length);
+            }
+            output.writeInt(pages.size());
+            for (DiagramPage page : pages) {
+                Segment segment = segments.get(page);
+                output.writeLong(segment.offset);
+                output.writeInt(segment.length);
+            }
+            output.write(styles);
+            return buffer.toByteArray();
+        }
+
+        private byte[] header(Segment indexLocation, byte[] index) throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(HEADER_SIZE);
+            DataOutputStream output = new DataOutputStream(buffer);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(indexLocation.offset);
+            output.writeInt(indexLocation.length);
+            output.writeInt(checksum(index));
+            return buffer.toByteArray();
+        }
+
+        private final File file;
+        private final boolean incremental;
+        private final java.util.List<DiagramPage> pages;
+        private final Map<DiagramPage, byte[]> payloads;
+        private final ModelWriter modelWriter;
+        private final boolean modelReplaced;
+        private final int pageIndex;
+        private final StyleWriter styleWriter;
+        private byte[] model; // Encoded by write
+        private byte[] styles; // Encoded by write
+    }
+
+
+    private class Index {
+
+        Index(Segment segment, DataInputStream input) throws IOException {
+            this.segment = segment;
+            pageIndex = input.readInt();
+            int modelCount = input.readInt();
+            if (modelCount < 1) {
+                throw new IOException("Invalid model segment count " + modelCount);
+            }
+            for (int i = 0; i < modelCount; ++i) {
+                models.add(new Segment(input.readLong(), input.readInt()));
+            }
+            int pageCount = input.readInt();
+            for (int i = 0; i < pageCount; ++i) {
+                pages.add(new Segment(input.readLong(), input.readInt()));
+                styleEntries.add(new ArrayList<>());
+            }
+            styles = new byte[input.readInt()];
+            input.readFully(styles);
+            int styleCount = input.readInt();
+            for (int i = 0; i < styleCount; ++i) {
+                int pageNumber = input.readInt();
+                if (pageNumber < 0 || pageCount <= pageNumber) {
+                    throw new IOException("Invalid page number " + pageNumber);
+                }
+                styleEntries.get(pageNumber).add(new int[] { (input.readBoolean()) ? 1 : 0, input.readInt(), input.readInt() });
+            }
+        }
+
+        final Segment segment;
+        final int pageIndex;
+        final ArrayList<Segment> models = new ArrayList<>(); // Later segments supersede earlier ones
+        final ArrayList<Segment> pages = new ArrayList<>();
+        final byte[] styles; // XML
+        final ArrayList<ArrayList<int[]>> styleEntries = new ArrayList<>(); // Per page: edge flag, picture number, style number
+    }
+
+
+    private static class Segment {
+
+        Segment(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        final long offset;
+        final int length;
+    }
+
+
+    /**
+     * Vertices and edges with a picture that shows them, each object once, in order of addition.
+     */
+    private static class ModelDelta {
+
+        void add(Object object, AbstractPicture picture) {
+            if (added.add(object)) {
+                objects.add(object);
+                pictures.add(picture);
+            }
+        }
+
+        boolean isEmpty() {
+            return objects.isEmpty();
+        }
+
+        final ArrayList<Object> objects = new ArrayList<>();
+        final ArrayList<AbstractPicture> pictures = new ArrayList<>();
+        private final Set<Object> added = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+
+    /**
+     * Model segment layout: one XML document with the identifiers, the objects and the identifiers of the ends of
+     * the edges among them, NULL_INDEX for objects that are not edges.
+     */
+    private class ModelWriter {
+
+        void add(int id, Object object, int[] ends) {
+            ids.add(id);
+            objects.add(object);
+            origins.add(ends[0]);
+            termini.add(ends[1]);
+            if (ends != NO_ENDS) {
+                modelEnds.put(id, ends);
+            }
+            else {
+                modelEnds.remove(id);
+            }
+        }
+
+        byte[] toBytes() {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (XMLEncoder encoder = createEncoder(buffer)) {
+                encoder.writeObject(new ArrayList<>(Arrays.asList(ids, objects, origins, termini)));
+            }
+            return buffer.toByteArray();
+        }
+
+        private final ArrayList<Integer> ids = new ArrayList<>();
+        private final ArrayList<Object> objects = new ArrayList<>();
+        private final ArrayList<Integer> origins = new ArrayList<>();
+        private final ArrayList<Integer> termini = new ArrayList<>();
+    }
+
+
+    /**
+     * Styles layout: the XML document with the styles, the number of entries and the entries.
+     */
+    private class StyleWriter {
+
+        StyleWriter(ArrayList<DrawStyle> styles, byte[] entries) {
+            this.styles = styles;
+            this.entries = entries;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(buffer);
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try (XMLEncoder encoder = createEncoder(xml)) {
+                encoder.writeObject(styles);
+            }
+            output.writeInt(xml.size());
+            xml.writeTo(output);
+            output.writeInt(styles.size());
+            output.write(entries);
+            return buffer.toByteArray();
+        }
+
+        private final ArrayList<DrawStyle> styles;
+        private final byte[] entries;
+    }
+
+
+    /**
+     * Vertices and edges by identifier, decoded from the model segments in order.
+     */
+    private static class Model {
+
+        void decode(InputStream input) throws IOException {
+            try (XMLDecoder decoder = new XMLDecoder(input)) {
+                ArrayList<ArrayList<?>> model = (ArrayList<ArrayList<?>>) decoder.readObject();
+                ArrayList<Integer> ids = (ArrayList<Integer>) model.get(0);
+                ArrayList<?> decoded = model.get(1);
+                ArrayList<Integer> origins = (ArrayList<Integer>) model.get(2);
+                ArrayList<Integer> termini = (ArrayList<Integer>) model.get(3);
+                for (int i = 0; i < ids.size(); ++i) {
+                    objects.put(ids.get(i), decoded.get(i));
+                    if (origins.get(i) != NULL_INDEX || termini.get(i) != NULL_INDEX) {
+                        ends.put(ids.get(i), new int[] { origins.get(i), termini.get(i) });
+                    }
+                    else {
+                        ends.remove(ids.get(i));
+                    }
+                }
+            }
+            catch (RuntimeException ex) {
+                throw new IOException("Invalid model", ex);
+            }
+        }
+
+        /**
+         * An edge decoded from one segment refers to the vertices decoded from the same segment, it is attached
+         * to the vertices that supersede them.
+         */
+        void attachEdges() throws IOException {
+            for (Map.Entry<Integer, int[]> entry : ends.entrySet()) {
+                Object edge = objects.get(entry.getKey());
+                Object origin = objects.get(entry.getValue()[0]);
+                Object terminus = objects.get(entry.getValue()[1]);
+                if (! (edge instanceof Edge) || ! (origin instanceof Vertex) || ! (terminus instanceof Vertex)) {
+                    throw new IOException("Invalid edge " + entry.getKey());
+                }
+                ((Edge) edge).init((Vertex) origin, (Vertex) terminus);
+            }
+        }
+
+        final Map<Integer, Object> objects = new HashMap<>();
+        final Map<Integer, int[]> ends = new HashMap<>(); // Of edges by identifier
+    }
+
+
+    /**
+     * Page segment layout: title, picture class names, vertex pictures and edge pictures. Vertex pictures
+     * that are not on the page are stored when edges on the page end at them.
+     */
+    private class PageWriter {
+
+        /**
+         * @param delta collects the vertices and edges that get an identifier
+         */
+        PageWriter(ModelDelta delta) {
+            this.delta = delta;
+        }
+
+        byte[] write(DiagramPage page) throws IOException {
+            Collection<VertexPicture> pageVertices = page.getVertices();
+            Collection<EdgePicture> pageEdges = page.getEdges();
+            ArrayList<VertexPicture> vertexPictures = new ArrayList<>();
+            if (pageVertices != null) {
+                vertexPictures.addAll(pageVertices);
+            }
+            int onPageCount = vertexPictures.size();
+            Map<VertexPicture, Integer> vertexNumbers = new IdentityHashMap<>();
+            for (int i = 0; i < vertexPictures.size(); ++i) {
+                vertexNumbers.put(vertexPictures.get(i), i);
+            }
+            if (pageEdges != null) {
+                for (EdgePicture picture : pageEdges) {
+                    for (VertexPicture end : Arrays.asList(picture.getOriginPicture(), picture.getTerminusPicture())) {
+                        if (end != null && ! vertexNumbers.containsKey(end)) {
+                            vertexNumbers.put(end, vertexPictures.size());
+                            vertexPictures.add(end);
+                        }
+                    }
+                }
+            }
+            writeString(page.getTitle());
+            collectClasses(vertexPictures, pageEdges);
+            output.writeInt(classNames.size());
+            for (String className : classNames) {
+                writeString(className);
+            }
+            output.writeBoolean(pageVertices != null);
+            output.writeInt(onPageCount);
+            output.writeInt(vertexPictures.size());
+            for (VertexPicture picture : vertexPictures) {
+                output.writeInt(classNames.indexOf(picture.getClass().getName()));
+                output.writeInt(id(picture.getVertex(), picture));
+                Point location = picture.getLocation();
+                output.writeBoolean(location != null);
+                if (location != null) {
+                    output.writeInt(location.x);
+                    output.writeInt(location.y);
+                }
+                Dimension size = picture.getSize();
+                output.writeBoolean(size != null);
+                if (size != null) {
+                    output.writeInt(size.width);
+                    output.writeInt(size.height);
+                }
+                writeExtension(picture);
+            }
+            output.writeInt((pageEdges != null) ? pageEdges.size() : NULL_INDEX);
+            if (pageEdges != null) {
+                for (EdgePicture picture : pageEdges) {
+                    output.writeInt(classNames.indexOf(picture.getClass().getName()));
+                    output.writeInt(id(picture.getEdge(), picture));
+                    output.writeInt(number(vertexNumbers, picture.getOriginPicture()));
+                    output.writeInt(number(vertexNumbers, picture.getTerminusPicture()));
+                    writeInts(picture.getXPoints());
+                    writeInts(picture.getYPoints());
+                    output.writeInt(picture.getOriginAttachmentIndex());
+                    output.writeInt(picture.getTerminusAttachmentIndex());
+                    writeExtension(picture);
+                }
+            }
+            return buffer.toByteArray();
+        }
+
+        private void collectClasses(Collection<VertexPicture> vertexPictures, Collection<EdgePicture> edgePictures) {
+            for (VertexPicture picture : vertexPictures) {
+                collectClass(picture);
+            }
+            if (edgePictures != null) {
+                for (EdgePicture picture : edgePictures) {
+                    collectClass(picture);
+                }
+            }
+        }
+
+        private void collectClass(AbstractPicture picture) {
+            String className = picture.getClass().getName();
+            if (! classNames.contains(className)) {
+                classNames.add(className);
+            }
+        }
+
+        private int id(Object object, AbstractPicture picture) {
+            if (object == null) {
+                return NULL_INDEX;
+            }
+            if (! modelIds.containsKey(object)) {
+                delta.add(object, picture);
+            }
+            return modelId(object);
+        }
+
+        private int number(Map<VertexPicture, Integer> numbers, VertexPicture picture) {
+            return (picture != null) ? numbers.get(picture) : NULL_INDEX;
+        }
+
+        private void writeExtension(AbstractPicture picture) throws IOException {
+            BinaryPersistenceDelegate delegate = binaryDelegates.get(picture.getClass());
+            if (delegate == null) {
+                output.writeInt(0);
+                return;
+            }
+            ByteArrayOutputStream extension = new ByteArrayOutputStream();
+            delegate.write(picture, new DataOutputStream(extension));
+            output.writeInt(extension.size());
+            extension.writeTo(output);
+        }
+
+        private void writeInts(int[] values) throws IOException {
+            output.writeInt((values != null) ? values.length : NULL_INDEX);
+            if (values != null) {
+                for (int value : values) {
+                    output.writeInt(value);
+                }
+            }
+        }
+
+        private void writeString(String string) throws IOException {
+            if (string == null) {
+                output.writeInt(NULL_INDEX);
+                return;
+            }
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        private final ModelDelta delta;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(buffer);
+        private final java.util.List<String> classNames = new ArrayList<>();
+    }
+
+
+    /**
+     * Decodes one page, readers of different pages may run concurrently.
+     */
+    private class PageReader {
+
+        PageReader(InputStream segment, Function<Integer, Object> objects, ClassLoader classLoader) {
+            input = new DataInputStream(segment);
+            this.objects = objects;
+            this.classLoader = classLoader;
+        }
+
+        void read() throws IOException {
+            page = new DiagramPage();
+            page.setTitle(readString());
+            readContent();
+        }
+
+        /**
+         * Reads the content of page, the title of page is kept.
+         */
+        void load(DiagramPage storedPage) throws IOException {
+            page = storedPage;
+            readString();
+            readContent();
+        }
+
+        String readTitle() throws IOException {
+            return readString();
+        }
+
+        private void readContent() throws IOException {
+            int classCount = input.readInt();
+            for (int i = 0; i < classCount; ++i) {
+                String className = readString();
+                try {
+                    classes.add(Class.forName(className, true, classLoader));
+                }
+                catch (ClassNotFoundException ex) {
+                    throw new IOException("Unknown picture class " + className, ex);
+                }
+            }
+            boolean hasVertices = input.readBoolean();
+            int onPageCount = input.readInt();
+            int vertexCount = input.readInt();
+            for (int i = 0; i < vertexCount; ++i) {
+                VertexPicture picture = (VertexPicture) createPicture(input.readInt());
+                picture.setVertex((Vertex) object(input.readInt()));
+                if (input.readBoolean()) {
+                    picture.setLocation(new Point(input.readInt(), input.readInt()));
+                }
+                picture.setSize((input.readBoolean()) ? new Dimension(input.readInt(), input.readInt()) : null);
+                readExtension(picture);
+                vertexPictures.add(picture);
+            }
+            int edgeCount = input.readInt();
+            if (edgeCount != NULL_INDEX) {
+                for (int i = 0; i < edgeCount; ++i) {
+                    EdgePicture picture = (EdgePicture) createPicture(input.readInt());
+                    picture.setEdge((Edge) object(input.readInt()));
+                    picture.setOriginPicture(vertexPicture(input.readInt()));
+                    picture.setTerminusPicture(vertexPicture(input.readInt()));
+                    picture.setXPoints(readInts());
+                    picture.setYPoints(readInts());
+                    picture.setOriginAttachmentIndex(input.readInt());
+                    picture.setTerminusAttachmentIndex(input.readInt());
+                    readExtension(picture);
+                    edgePictures.add(picture);
+                }
+            }
+            page.setContent((hasVertices) ? vertexPictures.subList(0, onPageCount) : null, (edgeCount != NULL_INDEX) ? edgePictures : null);
+        }
+
+        Map<Object, DrawStyle> drawStyles(Collection<StyleEntry> entries) throws IOException {
+            Map<Object, DrawStyle> drawStyles = new HashMap<>();
+            for (StyleEntry entry : entries) {
+                ArrayList<? extends AbstractPicture> pictures = (entry.edge) ? edgePictures : vertexPictures;
+                if (entry.number < 0 || pictures.size() <= entry.number) {
+                    throw new IOException("Invalid draw style entry");
+                }
+                drawStyles.put(pictures.get(entry.number), entry.style);
+            }
+            return drawStyles;
+        }
+
+        private Object object(int id) throws IOException {
+            if (id == NULL_INDEX) {
+                return null;
+            }
+            Object object = objects.apply(id);
+            if (object == null) {
+                throw new IOException("Unknown model object " + id);
+            }
+            return object;
+        }
+
+        private AbstractPicture createPicture(int classIndex) throws IOException {
+            Class pictureClass = classes.get(classIndex);
+            try {
+                return (AbstractPicture) pictureClass.newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException ex) {
+                throw new IOException("Cannot create " + pictureClass.getName(), ex);
+            }
+        }
+
+        private void readExtension(AbstractPicture picture) throws IOException {
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            BinaryPersistenceDelegate delegate = binaryDelegates.get(picture.getClass());
+            if (delegate != null) {
+                delegate.read(picture, new DataInputStream(new ByteArrayInputStream(bytes)));
+            }
+        }
+
+        private VertexPicture vertexPicture(int index) {
+            return (index != NULL_INDEX) ? vertexPictures.get(index) : null;
+        }
+
+        private int[] readInts() throws IOException {
+            int length = input.readInt();
+            if (length == NULL_INDEX) {
+                return null;
+            }
+            int[] values = new int[length];
+            for (int i = 0; i < length; ++i) {
+                values[i] = input.readInt();
+            }
+            return values;
+        }
+
+        private String readString() throws IOException {
+            int length = input.readInt();
+            if (length == NULL_INDEX) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        DiagramPage page;
+
+        private final DataInputStream input;
+        private final Function<Integer, Object> objects; // Model object by identifier
+        private final ClassLoader classLoader;
+        private final ArrayList<Class> classes = new ArrayList<>();
+        private final ArrayList<VertexPicture> vertexPictures = new ArrayList<>();
+        private final ArrayList<EdgePicture> edgePictures = new ArrayList<>();
+    }
+
+
+    /**
+     * Customized draw style of a picture, by its number on the page.
+     */
+    private static class StyleEntry {
+
+        StyleEntry(boolean edge, int number, DrawStyle style) {
+            this.edge = edge;
+            this.number = number;
+            this.style = style;
+        }
+
+        final boolean edge;
+        final int number;
+        final DrawStyle style;
+    }
+
+
+    /**
+     * Reads a segment from its buffer without copying it.
+     */
+    private static class BufferInput extends InputStream {
+
+        BufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return (buffer.hasRemaining()) ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (! buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        private final ByteBuffer buffer;
+    }
+
+
+    private final Map<Class, PersistenceDelegate> persistenceDelegates;
+    private final Map<Class, BinaryPersistenceDelegate> binaryDelegates;
+    private final Consumer<DiagramPage> loadListener;
+
+    // Encoding state, used by the thread that prepares updates
+    private File encodedFile;
+    private final Set<DiagramPage> encodedPages = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Object, Integer> modelIds = new IdentityHashMap<>();
+    private final Map<Integer, Object> modelObjects = new HashMap<>(); // Inverse of modelIds, guarded by lock for pages loaded lazily
+    private int nextModelId;
+    private final Map<Integer, int[]> modelEnds = new HashMap<>(); // Identifiers of the ends of edges by identifier
+    private int encodedModelSegments;
+    private volatile boolean writeFailed;
+    private final Map<DiagramPage, java.util.List<StyleEntry>> storedStyles = new IdentityHashMap<>(); // Of pages not loaded
+
+    // Layout of the file as written, used by the thread that writes updates and the threads that load pages
+    private File layoutFile; // Null if the file must be rewritten
+    private File storedFile; // File the segments are stored in
+    private final Map<DiagramPage, Segment> pageSegments = new IdentityHashMap<>();
+    private final java.util.List<Segment> modelSegments = new ArrayList<>();
+    private Segment indexSegment;
+    private int pendingUpdates;
+    private FileChannel channel;
+    private File channelFile;
+    private final Object lock = new Object();
+
+    static final int MAGIC = 0x424B4742; // "BKGB"
+    static final int VERSION = 4;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+    private static final int NULL_INDEX = -1;
+    private static final int[] NO_ENDS = new int[] { NULL_INDEX, NULL_INDEX };
+    private static final int MODEL_SEGMENT_LIMIT = 16; // Model segments before the model is written in one segment again
+    private static final int REWRITE_FACTOR = 2;
+    private static final int DECODE_WINDOW = 2 * Runtime.getRuntime().availableProcessors(); // Pages read ahead
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+}
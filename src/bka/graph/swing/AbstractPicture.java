@@ -20,8 +20,20 @@ public abstract class AbstractPicture {
 
     public abstract boolean isLocatedAt(Point point);
     
+    /**
+     * When the diagram renders tiles in parallel, see GraphEditor.isParallelRendering, a picture may be painted
+     * by several threads at once. Implementations must then only read the state of this picture, or cache state
+     * that is safe to compute by each thread and published safely.
+     * @param g2d
+     */
     protected abstract void paintText(Graphics2D g2d);
+
+    /**
+     * Same thread-safety requirement as paintText.
+     * @param g2d
+     */
     protected abstract void paintShape(Graphics2D g2d);
+
     protected abstract Shape buildShape();
 
     protected abstract int xWest();
@@ -41,8 +53,39 @@ public abstract class AbstractPicture {
 
 
     public final void paint(Graphics2D g2d) {
-        paintShape(g2d);
-        paintText(g2d);
+        painted(paintPicture(g2d));
+    }
+
+
+    /**
+     * Paints this picture without changing its text extent, so several threads can paint it at once.
+     * @param g2d
+     * @return text extent painted, relative to north west of bounds, null if no text extent was included
+     */
+    final Rectangle paintPicture(Graphics2D g2d) {
+        TextExtent outer = PAINTING_TEXT_EXTENT.get();
+        TextExtent painting = new TextExtent();
+        PAINTING_TEXT_EXTENT.set(painting);
+        try {
+            paintShape(g2d);
+            paintText(g2d);
+            return painting.area;
+        }
+        finally {
+            PAINTING_TEXT_EXTENT.set(outer);
+        }
+    }
+
+
+    /**
+     * Replaces the text extent of this picture by the extent of the last paint.
+     * @param extent returned by paintPicture
+     */
+    final void painted(Rectangle extent) {
+        synchronized (textExtentLock) {
+            textExtent = extent;
+        }
+        painted = true;
     }
 
 
@@ -58,6 +101,24 @@ public abstract class AbstractPicture {
     }
 
 
+    /**
+     * Text is included as far as it was painted last time.
+     * Before the first paint the text extent is unknown, it is estimated by a wider margin.
+     * @return Rectangle enclosing all points where this picture can be painted or located at.
+     */
+    public Rectangle paintBounds() {
+        Rectangle bounds = bounds();
+        synchronized (textExtentLock) {
+            if (textExtent != null) {
+                bounds.add(new Rectangle(bounds.x + textExtent.x, bounds.y + textExtent.y, textExtent.width, textExtent.height));
+            }
+        }
+        int margin = (painted) ? BOUNDS_MARGIN : UNPAINTED_MARGIN;
+        bounds.grow(margin, margin);
+        return bounds;
+    }
+
+
     public Object getAreaKey(Point point) {
         return null;
     }
@@ -73,6 +134,31 @@ public abstract class AbstractPicture {
     }
 
 
+    /**
+     * Extends the text extent of this picture with given area.
+     * Pictures that paint text outside their bounds must call this when painting text.
+     * @param area painted text area
+     */
+    protected final void includeTextExtent(Rectangle2D area) {
+        Rectangle extent = area.getBounds();
+        extent.translate(-xWest(), -yNorth());
+        TextExtent painting = PAINTING_TEXT_EXTENT.get();
+        if (painting != null) {
+            painting.include(extent);
+        }
+        else {
+            synchronized (textExtentLock) {
+                if (textExtent == null) {
+                    textExtent = extent;
+                }
+                else {
+                    textExtent.add(extent);
+                }
+            }
+        }
+    }
+
+
     protected Color getColor(Object key) {
         return getDrawStyle().getColor(key);
     }
@@ -114,9 +200,33 @@ public abstract class AbstractPicture {
 
     protected static final Stroke DEFAULT_STROKE = new BasicStroke();
     protected static final Map<TextAttribute, Object> DEFAULT_FONT = Collections.EMPTY_MAP;
-    
+
+    private volatile boolean painted;
+    private Rectangle textExtent; // Relative to north west of bounds
+    private final Object textExtentLock = new Object();
+
+    private static final ThreadLocal<TextExtent> PAINTING_TEXT_EXTENT = new ThreadLocal<>(); // Of the picture the thread paints
+
+    private static final int BOUNDS_MARGIN = 8; // Exceeds location tolerance of vertices and edges
+    private static final int UNPAINTED_MARGIN = 64;
+
     private  Shape shape;
-    protected final Map<Object, Rectangle2D> textAreas = new HashMap<>();
+    protected final Map<Object, Rectangle2D> textAreas = Collections.synchronizedMap(new HashMap<>());
+
+
+    private static class TextExtent {
+
+        void include(Rectangle extent) {
+            if (area == null) {
+                area = extent;
+            }
+            else {
+                area.add(extent);
+            }
+        }
+
+        Rectangle area;
+    }
     
 
 }
@@ -0,0 +1,125 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import java.util.*;
+import java.util.function.*;
+
+
+/**
+ * Containment hierarchy of the vertex pictures of a diagram.
+ * A picture whose container may have changed is invalidated, its container is located again by the locator
+ * when the tree is queried next. So finding the container of a picture is O(1), the path to the outermost
+ * container is O(depth) and the contained pictures of a container are O(children).
+ */
+class ContainmentTree {
+
+
+    /**
+     * @param locator finds the current container of a vertex picture, null if it is not contained
+     */
+    ContainmentTree(Function<VertexPicture, VertexPicture> locator) {
+        this.locator = locator;
+    }
+
+
+    /**
+     * Marks the containers of picture and of the pictures it contains to be located again.
+     * @param picture
+     */
+    void invalidate(VertexPicture picture) {
+        invalid.add(picture);
+        Collection<VertexPicture> contained = children.get(picture);
+        if (contained != null) {
+            invalid.addAll(contained);
+        }
+    }
+
+
+    /**
+     * Removes picture from the tree, the pictures it contains are invalidated.
+     * @param picture
+     */
+    void remove(VertexPicture picture) {
+        invalid.remove(picture);
+        detach(picture);
+        Collection<VertexPicture> contained = children.remove(picture);
+        if (contained != null) {
+            for (VertexPicture child : contained) {
+                containers.remove(child);
+                invalid.add(child);
+            }
+        }
+    }
+
+
+    void clear() {
+        containers.clear();
+        children.clear();
+        invalid.clear();
+    }
+
+
+    /**
+     * @param picture
+     * @return Container of picture, null if picture is not contained
+     */
+    VertexPicture getContainer(VertexPicture picture) {
+        validate();
+        return containers.get(picture);
+    }
+
+
+    /**
+     * @param container
+     * @return Pictures directly contained by container, in no particular order
+     */
+    Collection<VertexPicture> getChildren(VertexPicture container) {
+        validate();
+        Collection<VertexPicture> contained = children.get(container);
+        return (contained != null) ? Collections.unmodifiableCollection(contained) : Collections.emptyList();
+    }
+
+
+    private void validate() {
+        while (! invalid.isEmpty()) {
+            Iterator<VertexPicture> iterator = invalid.iterator();
+            VertexPicture picture = iterator.next();
+            iterator.remove();
+            VertexPicture container = locator.apply(picture);
+            if (container != containers.get(picture)) {
+                detach(picture);
+                if (container != null) {
+                    containers.put(picture, container);
+                    Collection<VertexPicture> contained = children.get(container);
+                    if (contained == null) {
+                        contained = new LinkedHashSet<>();
+                        children.put(container, contained);
+                    }
+                    contained.add(picture);
+                }
+            }
+        }
+    }
+
+
+    private void detach(VertexPicture picture) {
+        VertexPicture container = containers.remove(picture);
+        if (container != null) {
+            Collection<VertexPicture> contained = children.get(container);
+            contained.remove(picture);
+            if (contained.isEmpty()) {
+                children.remove(container);
+            }
+        }
+    }
+
+
+    private final Function<VertexPicture, VertexPicture> locator;
+    private final Map<VertexPicture, VertexPicture> containers = new HashMap<>();
+    private final Map<VertexPicture, Collection<VertexPicture>> children = new HashMap<>();
+    private final Set<VertexPicture> invalid = new LinkedHashSet<>();
+
+}
@@ -24,10 +24,15 @@ public class DiagramComponent extends JComponent {
     DiagramComponent(GraphEditor editor, DiagramPage page) {
         this.editor = editor;
         this.page = page;
+        sceneCache = new SceneCache(this::snapshot, editor.getSceneCacheBudget(), editor.isParallelRendering());
         initialize();
         setTitle(page.getTitle());
-        pictures.addAll(page.getVertices());
-        pictures.addAll(page.getEdges());
+        for (VertexPicture vertexPicture : page.getVertices()) {
+            addToPictures(vertexPicture);
+        }
+        for (EdgePicture edgePicture : page.getEdges()) {
+            addToPictures(edgePicture);
+        }
         int width = 0;
         int height = 0;
         for (AbstractPicture picture : pictures) {
@@ -35,7 +40,10 @@ public class DiagramComponent extends JComponent {
             height = Math.max(height, picture.ySouth());
         }
         setComponentSize(width, height);
-        drawHistory = new DrawHistory(this);
+        mutatedPictures.clear();
+        drawHistory = new DrawHistory(this, editor.getHistoryLimit(), editor.getHistoryBudget(), editor.getHistoryCoalesceWindow());
+        editor.restoreHistory(page, drawHistory);
+        drawHistory.addListener(history -> editor.picturesMutated(this));
     }
 
 
@@ -61,7 +69,7 @@ public class DiagramComponent extends JComponent {
             if (selectedPicture == vertexPicture) {
                 selectedPicture = null;
             }
-            pictures.remove(vertexPicture);
+            removeFromPictures(vertexPicture);
             highlights.remove(vertexPicture);
             page.remove(vertexPicture);
         }
@@ -76,8 +84,7 @@ public class DiagramComponent extends JComponent {
     private void addEdgePicture(EdgePicture edgePicture, boolean selected) {
         synchronized (lock) {
             page.add(edgePicture);
-            int index = findInsertIndex(edgePicture);
-            pictures.add(index, edgePicture);
+            addToPictures(edgePicture, lastDrawnEnd(edgePicture));
             if (selected) {
                 setSelected(edgePicture);
             }
@@ -90,7 +97,7 @@ public class DiagramComponent extends JComponent {
             if (selectedPicture == edgePicture) {
                 selectedPicture = null;
             }
-            pictures.remove(edgePicture);
+            removeFromPictures(edgePicture);
             highlights.remove(edgePicture);
             page.remove(edgePicture);
         }
@@ -116,41 +123,25 @@ public class DiagramComponent extends JComponent {
         g2d.setRenderingHint(java.awt.RenderingHints.KEY_ANTIALIASING, java.awt.RenderingHints.VALUE_ANTIALIAS_ON);
         g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_LCD_HRGB);
         synchronized (lock) {
-            for (AbstractPicture picture : pictures) {
-                try {
-                    picture.paint(g2d);
-                }
-                catch (RuntimeException ex) {
-                    Logger.getLogger(DiagramComponent.class.getName()).log(Level.SEVERE, "Eelement paint", ex);
-                }
+            Rectangle clip = g2d.getClipBounds();
+            if (clip != null) {
+                sceneCache.paint(g2d, clip);
             }
-            for (Map.Entry<AbstractPicture, Collection<DrawStyle>> highlight : highlights.entrySet()) {
-                paintHighlight(g2d, highlight.getKey(), highlight.getValue());
-            }
-            g2d.setColor(SELECTION_COLOR);
-            g2d.setStroke(SELECTION_STROKE);
-            if (selectedPicture != null) {
-                g2d.draw(selectedPicture.getShape());
-            }
-            for (VertexPicture vertexPicture : selectedVertices) {
-                g2d.draw(vertexPicture.getShape());
-            }
-            if (attachmentPoint != null) {
-                g2d.setColor(attachmentPointColor);
-                g2d.fillOval(attachmentPoint.x - attachmentPointWidth / 2, attachmentPoint.y - attachmentPointHeight / 2, attachmentPointWidth, attachmentPointHeight);
-            }
-            if (hoverInfo != null && hoverInfo.area != null) {
-                g2d.setColor(areaBoundsColor);
-                g2d.setStroke(AREA_BOUNDS_STROKE);
-                g2d.drawRoundRect(hoverInfo.area.x, hoverInfo.area.y, hoverInfo.area.width, hoverInfo.area.height, 3, 3);
-            }
-            if (dragInfo != null && dragInfo.vertexInfos.isEmpty() && dragInfo.edgeInfo == null) {
-                Rectangle rectangle = dragInfo.getRectangle();
-                if (rectangle != null) {
-                    g2d.setColor(Color.LIGHT_GRAY);
-                    g2d.drawRect(rectangle.x, rectangle.y, rectangle.width, rectangle.height);
-                }
+            else {
+                SceneCache.Scene scene = snapshot(null);
+                scene.render(g2d, null);
+                scene.rendered();
             }
+            paintOverlay(g2d);
+        }
+    }
+
+
+    @Override
+    public void removeNotify() {
+        super.removeNotify();
+        synchronized (lock) {
+            sceneCache.flush();
         }
     }
 
@@ -165,9 +156,31 @@ public class DiagramComponent extends JComponent {
     }
 
 
+    /**
+     * Brings the diagram to the state after the mutation at given index of the draw history.
+     */
+    void jumpInHistory(int index) {
+        if (drawHistory.jumpTo(index)) {
+            repaintDamage();
+        }
+    }
+
+
+    /**
+     * @return pictures added, removed or changed since the previous call, in order of their first change
+     */
+    Collection<AbstractPicture> takeMutatedPictures() {
+        synchronized (lock) {
+            Collection<AbstractPicture> mutated = new ArrayList<>(mutatedPictures);
+            mutatedPictures.clear();
+            return mutated;
+        }
+    }
+
+
     boolean contains(AbstractPicture picture) {
         synchronized (lock) {
-            return pictures.contains(picture);
+            return pictureIndex.contains(picture);
         }
     }
 
@@ -197,30 +210,30 @@ public class DiagramComponent extends JComponent {
             for (EdgePicture edgePicture : edgePictures) {
                 page.remove(edgePicture);
                 editor.vertexPictureRemoved(vertexPicture);
-                pictures.remove(edgePicture);
+                removeFromPictures(edgePicture);
             }
-            pictures.remove(vertexPicture);
+            removeFromPictures(vertexPicture);
             page.remove(vertexPicture);
         }
         editor.vertexPictureRemoved(vertexPicture);
         if (vertexPicture == selectedPicture) {
             selectedPicture = null;
         }
-        repaint();
+        repaintDamage();
         drawHistory.addVertexDeletion(vertexPicture, edgePictures);
     }
 
 
     void removeEdge(EdgePicture edgePicture) {
         synchronized (lock) {
-            pictures.remove(edgePicture);
+            removeFromPictures(edgePicture);
             page.remove(edgePicture);
         }
         editor.edgePictureRemoved(edgePicture);
         if (edgePicture == selectedPicture) {
             selectedPicture = null;
         }
-        repaint();
+        repaintDamage();
         drawHistory.addEdgeDeletion(edgePicture);
     }
 
@@ -249,6 +262,7 @@ public class DiagramComponent extends JComponent {
                 highlights.put(picture, pictureHighlights);
             }
             pictureHighlights.add(drawStyle);
+            addDamage(highlightBounds(picture, pictureHighlights));
         }
     }
 
@@ -258,6 +272,7 @@ public class DiagramComponent extends JComponent {
         synchronized (lock) {
             Collection<DrawStyle> pictureHighlights = highlights.get(picture);
             if (pictureHighlights != null) {
+                addDamage(highlightBounds(picture, pictureHighlights));
                 reset |= pictureHighlights.remove(drawStyle);
                 if (pictureHighlights.isEmpty()) {
                     highlights.remove(picture);
@@ -272,7 +287,10 @@ public class DiagramComponent extends JComponent {
         boolean reset = false;
         synchronized (lock) {
             for (Map.Entry<AbstractPicture, Collection<DrawStyle>> pictureHighlights : highlights.entrySet()) {
-                reset |= pictureHighlights.getValue().remove(drawStyle);
+                if (pictureHighlights.getValue().contains(drawStyle)) {
+                    addDamage(highlightBounds(pictureHighlights.getKey(), pictureHighlights.getValue()));
+                    reset |= pictureHighlights.getValue().remove(drawStyle);
+                }
            }
         }
         return reset;
@@ -285,7 +303,7 @@ public class DiagramComponent extends JComponent {
                 insertVertexPicture(vertexPicture);
             }
             for (EdgePicture edgePicture : edgePictures) {
-                pictures.add(edgePicture);
+                addToPictures(edgePicture);
                 page.add(edgePicture);
             }
         }
@@ -308,43 +326,168 @@ public class DiagramComponent extends JComponent {
     void revertVertexMutation(VertexPicture destination, Point originalLocation, Dimension originalSize) {
         synchronized (lock) {
             ensureDrawnLast(destination);
-            int δx = originalLocation.x - destination.getLocation().x;
-            int δy = originalLocation.y - destination.getLocation().y;
-            setVertexLocation(destination, originalLocation);
+            moveSubtree(destination, originalLocation);
             destination.setSize(originalSize);
-            moveContainedPictures(destination, δx, δy);
+            pictureChanged(destination);
             for (EdgePicture edgePicture : allEdgePictures(destination)) {
                 edgePicture.correctEndPoint(destination);
                 edgePicture.cleanup();
+                pictureChanged(edgePicture);
             }
         }
     }
 
 
+    /**
+     * Shows exactly the given pictures in the given state. Contained pictures and edges are not adjusted,
+     * their state is given too.
+     * @param locations locations and sizes of vertex pictures
+     * @param edgePoints points of edge pictures, x and y coordinates interleaved
+     * @param drawingOrder all given pictures from back to front
+     */
+    void restorePictures(Map<VertexPicture, Rectangle> locations, Map<EdgePicture, int[]> edgePoints, Collection<AbstractPicture> drawingOrder) {
+        synchronized (lock) {
+            Collection<VertexPicture> removedVertexPictures = new ArrayList<>();
+            Collection<VertexPicture> currentVertexPictures = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (VertexPicture picture : getVertexPictures()) {
+                currentVertexPictures.add(picture);
+                if (! locations.containsKey(picture)) {
+                    removedVertexPictures.add(picture);
+                }
+            }
+            Collection<EdgePicture> removedEdgePictures = new ArrayList<>();
+            Collection<EdgePicture> currentEdgePictures = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (EdgePicture picture : getEdgePictures()) {
+                currentEdgePictures.add(picture);
+                if (! edgePoints.containsKey(picture)) {
+                    removedEdgePictures.add(picture);
+                }
+            }
+            removePictures(removedVertexPictures, removedEdgePictures);
+            Collection<VertexPicture> insertedVertexPictures = new ArrayList<>();
+            for (VertexPicture picture : locations.keySet()) {
+                if (! currentVertexPictures.contains(picture)) {
+                    insertedVertexPictures.add(picture);
+                }
+            }
+            Collection<EdgePicture> insertedEdgePictures = new ArrayList<>();
+            for (EdgePicture picture : edgePoints.keySet()) {
+                if (! currentEdgePictures.contains(picture)) {
+                    insertedEdgePictures.add(picture);
+                }
+            }
+            insertPictures(insertedVertexPictures, insertedEdgePictures);
+            for (Map.Entry<VertexPicture, Rectangle> entry : locations.entrySet()) {
+                VertexPicture picture = entry.getKey();
+                Rectangle bounds = entry.getValue();
+                picture.setLocation(bounds.getLocation());
+                picture.setSize(bounds.getSize());
+                pictureChanged(picture);
+                setComponentSize(picture.xEast(), picture.ySouth());
+            }
+            for (Map.Entry<EdgePicture, int[]> entry : edgePoints.entrySet()) {
+                EdgePicture picture = entry.getKey();
+                picture.replacePoints(0, picture.getPointCount(), entry.getValue());
+                pictureChanged(picture);
+            }
+            for (AbstractPicture picture : drawingOrder) {
+                pictures.moveToFront(picture);
+                addSceneDamage(picture);
+            }
+        }
+    }
+
+
+    /**
+     * @return all pictures from back to front
+     */
+    ArrayList<AbstractPicture> getDrawingOrder() {
+        synchronized (lock) {
+            ArrayList<AbstractPicture> order = new ArrayList<>(pictures.size());
+            for (AbstractPicture picture : pictures) {
+                order.add(picture);
+            }
+            return order;
+        }
+    }
+
+
+    /**
+     * @see EdgePicture#replacePoints
+     */
+    void revertEdgeMutation(EdgePicture edgePicture, int index, int count, int[] points) {
+        synchronized (lock) {
+            edgePicture.replacePoints(index, count, points);
+            pictureChanged(edgePicture);
+        }
+    }
+
+
     void setSelected(AbstractPicture picture) {
         synchronized (lock) {
+            if (selectedPicture != null) {
+                addDamage(selectedPicture);
+            }
             selectedPicture = picture;
+            if (picture != null) {
+                addDamage(picture);
+            }
+        }
+    }
+
+
+    /**
+     * Repaints the area of all pictures and overlays changed since previous call.
+     */
+    void repaintDamage() {
+        synchronized (lock) {
+            if (damage != null) {
+                repaint(damage);
+                damage = null;
+            }
         }
     }
 
 
     VertexPicture findContainer(VertexPicture vertexPicture) {
         synchronized (lock) {
-            int index = pictures.indexOf(vertexPicture);
-            while (index > 0) {
-                index--;
-                AbstractPicture picture = pictures.get(index);
-                if (picture instanceof VertexPicture && picture.isLocatedAt(vertexPicture.getLocation())) {
-                    return (VertexPicture) picture;
-                }
+            return containmentTree.getContainer(vertexPicture);
+        }
+    }
+
+
+    /**
+     * @param pictures in drawing order
+     * @param vertexPicture
+     * @return The last vertex picture drawn before vertexPicture that is located at the location of vertexPicture.
+     */
+    static VertexPicture findContainer(java.util.List<? extends AbstractPicture> pictures, VertexPicture vertexPicture) {
+        int index = pictures.indexOf(vertexPicture);
+        while (index > 0) {
+            index--;
+            AbstractPicture picture = pictures.get(index);
+            if (picture instanceof VertexPicture && picture.isLocatedAt(vertexPicture.getLocation())) {
+                return (VertexPicture) picture;
             }
-            return null;
         }
+        return null;
     }
 
 
     void clearHoverInfo() {
         hoverInfo = null;
+        repaintAll();
+    }
+
+
+    /**
+     * Repaints the entire diagram, for changes that are not tracked, like draw styles.
+     */
+    void repaintAll() {
+        synchronized (lock) {
+            sceneCache.invalidateAll();
+            damage = null;
+        }
         repaint();
     }
 
@@ -359,19 +502,6 @@ public class DiagramComponent extends JComponent {
     }
 
 
-    private ArrayList<VertexPicture> containerPath(VertexPicture vertexPicture) {
-        ArrayList<VertexPicture> path = new ArrayList<>();
-        while (vertexPicture != null) {
-            VertexPicture container = findContainer(vertexPicture);
-            if (container != null) {
-                path.add(container);
-            }
-            vertexPicture = container;
-        }
-        return path;
-    }
-
-
     private void initialize() {
         setSize(0, 0);
         addMouseListener(MOUSE_ADAPTER);
@@ -389,6 +519,46 @@ public class DiagramComponent extends JComponent {
     }
 
 
+    private SceneCache.Scene snapshot(Rectangle area) {
+        return new SceneSnapshot(visiblePictures(area), area);
+    }
+
+
+    /**
+     * Paints highlights, selections and other indicators on top of the scene.
+     * @param g2d
+     */
+    private void paintOverlay(Graphics2D g2d) {
+        for (Map.Entry<AbstractPicture, Collection<DrawStyle>> highlight : highlights.entrySet()) {
+            paintHighlight(g2d, highlight.getKey(), highlight.getValue());
+        }
+        g2d.setColor(SELECTION_COLOR);
+        g2d.setStroke(SELECTION_STROKE);
+        if (selectedPicture != null) {
+            g2d.draw(selectedPicture.getShape());
+        }
+        for (VertexPicture vertexPicture : selectedVertices) {
+            g2d.draw(vertexPicture.getShape());
+        }
+        if (attachmentPoint != null) {
+            g2d.setColor(attachmentPointColor);
+            g2d.fillOval(attachmentPoint.x - attachmentPointWidth / 2, attachmentPoint.y - attachmentPointHeight / 2, attachmentPointWidth, attachmentPointHeight);
+        }
+        if (hoverInfo != null && hoverInfo.area != null) {
+            g2d.setColor(areaBoundsColor);
+            g2d.setStroke(AREA_BOUNDS_STROKE);
+            g2d.drawRoundRect(hoverInfo.area.x, hoverInfo.area.y, hoverInfo.area.width, hoverInfo.area.height, 3, 3);
+        }
+        if (dragInfo != null && dragInfo.isSelecting()) {
+            Rectangle rectangle = dragInfo.getRectangle();
+            if (rectangle != null) {
+                g2d.setColor(Color.LIGHT_GRAY);
+                g2d.drawRect(rectangle.x, rectangle.y, rectangle.width, rectangle.height);
+            }
+        }
+    }
+
+
     private void paintHighlight(Graphics2D g2d, AbstractPicture picture, Collection<DrawStyle> drawStyles) {
         for (DrawStyle style : drawStyles) {
             Color color = style.getColor(DrawStyleKey.HIGHLIGHT_BORDER);
@@ -408,7 +578,7 @@ public class DiagramComponent extends JComponent {
     }
 
 
-    private ArrayList<EdgePicture> getEdgePictures() {
+    ArrayList<EdgePicture> getEdgePictures() {
         ArrayList<EdgePicture> edges = new ArrayList<>();
         synchronized (lock) {
             for (AbstractPicture picture : pictures) {
@@ -462,14 +632,14 @@ public class DiagramComponent extends JComponent {
         insertVertexPicture(vertexPicture);
         setComponentSize(vertexPicture.xEast(), vertexPicture.ySouth());
         setComponentSize(vertexPicture.xEast(), vertexPicture.ySouth());
-        selectedPicture = vertexPicture;
-        repaint();
+        setSelected(vertexPicture);
+        repaintDamage();
         drawHistory.addVertexInsertion(vertexPicture);
     }
 
 
     private void insertVertexPicture(VertexPicture picture) {
-        pictures.add(picture);
+        addToPictures(picture);
         page.add(picture);
         editor.vertexPictureAdded(this, picture);
     }
@@ -490,7 +660,7 @@ public class DiagramComponent extends JComponent {
             initializeVertexDragging();
         }
         else {
-            selectedVertices.clear();
+            clearSelectedVertices();
             Class edgePictureClass = editor.selectedEdgePictureClass();
             if (attachmentPoint != null && edgePictureClass != null) {
                 startNewEdgeDrag(edgePictureClass);
@@ -521,10 +691,9 @@ public class DiagramComponent extends JComponent {
         try {
             info.initializeNewEdgeDrag(edgePictureClass);
             if (info.picture != null) {
-                pictures.add(info.picture);
-                selectedPicture = info.picture;
+                addToPictures(info.picture);
+                setSelected(info.picture);
                 dragInfo.edgeInfo = info;
-                repaint();
             }
             else {
                 dragInfo = null;
@@ -540,6 +709,7 @@ public class DiagramComponent extends JComponent {
     private void startEdgeDrag(EdgePicture edgePicture) {
         EdgeDragInfo info = new EdgeDragInfo();
         info.initializeDrag(edgePicture);
+        pictureChanged(edgePicture);
         dragInfo.edgeInfo = info;
     }
 
@@ -579,10 +749,13 @@ public class DiagramComponent extends JComponent {
 
 
     private void cleanupEdges() {
-        for (EdgePicture edgePicture : getEdgePictures()) {
-            if (dragInfo.contains(edgePicture.getOriginPicture()) || dragInfo.contains(edgePicture.getTerminusPicture())) {
-                edgePicture.cleanup();
-            }
+        Collection<EdgePicture> edgePictures = new LinkedHashSet<>();
+        for (VertexDragInfo info : dragInfo.vertexInfos) {
+            edgePictures.addAll(incidentEdgeIndex.find(info.picture));
+        }
+        for (EdgePicture edgePicture : edgePictures) {
+            edgePicture.cleanup();
+            pictureChanged(edgePicture);
         }
     }
 
@@ -594,15 +767,16 @@ public class DiagramComponent extends JComponent {
         else {
             VertexPicture vertexPicture = getVertexPicture(point);
             if (vertexPicture != null) {
-                attachmentPoint = vertexPicture.nearestAttachmentPoint(point);
+                setAttachmentPoint(vertexPicture.nearestAttachmentPoint(point));
             }
             else {
-                attachmentPoint = null;
+                setAttachmentPoint(null);
             }
             if (dragInfo.edgeInfo.picture.getTerminusPicture() == null) {
                 dragInfo.edgeInfo.picture.setEndPoint(point);
             }
         }
+        pictureChanged(dragInfo.edgeInfo.picture);
         setComponentSize(dragInfo.edgeInfo.picture.xEast(),dragInfo.edgeInfo.picture.ySouth());
     }
 
@@ -616,9 +790,10 @@ public class DiagramComponent extends JComponent {
     private void finishEdgeDragging() {
         if (dragInfo.edgeInfo.picture.hasDragPoint()) {
             dragInfo.edgeInfo.finishDrag();
+            pictureChanged(dragInfo.edgeInfo.picture);
         }
         else if (! finalizeNewEdge(dragInfo.endPoint)) {
-            pictures.remove(dragInfo.edgeInfo.picture);
+            removeFromPictures(dragInfo.edgeInfo.picture);
             selectedPicture = null;
         }
     }
@@ -630,6 +805,7 @@ public class DiagramComponent extends JComponent {
             int terminusAttachmentIndex = terminusPicture.nearestAttachmentIndex(point);
             if (terminusAttachmentIndex >= 0 && ! dragInfo.edgeInfo.picture.hasOrigin(terminusPicture, terminusAttachmentIndex)) {
                 dragInfo.edgeInfo.picture.setTerminus(terminusPicture, terminusAttachmentIndex);
+                pictureChanged(dragInfo.edgeInfo.picture);
                 page.add(dragInfo.edgeInfo.picture);
                 editor.edgePictureAdded(this, dragInfo.edgeInfo.picture);
                 drawHistory.addEdgeInsertion(dragInfo.edgeInfo.picture);
@@ -661,57 +837,65 @@ public class DiagramComponent extends JComponent {
             }
             else {
                 info.picture.resize(hoverInfo.location, point);
+                pictureChanged(info.picture);
                 correctEndPoints(info.picture);
             }
         }
         if (attachmentPoint != null) {
-            attachmentPoint = null;
+            setAttachmentPoint(null);
         }
     }
 
 
     private void moveDraggingVertexPicture(VertexDragInfo info, Point destination) {
-        Point containerPoint = info.picture.getLocation();
-        int δx = destination.x - containerPoint.x;
-        int δy = destination.y - containerPoint.y;
-        setVertexLocation(info.picture, destination);
-        moveContainedPictures(info.picture, δx, δy);
+        moveSubtree(info.picture, destination);
     }
 
 
     private void selectPictures() {
         Rectangle rectangle = dragInfo.getRectangle();
-        selectedVertices .clear();
+        clearSelectedVertices();
         for (VertexPicture picture : getVertexPictures()) {
             if (rectangle.intersects(picture.bounds())) {
                 selectedVertices.add(picture);
+                addDamage(picture);
             }
         }
     }
 
 
-    private void moveContainedPictures(VertexPicture containerPicture, int δx, int δy) {
-        ArrayList<VertexPicture> vertices = getVertexPictures();
-        ArrayList<EdgePicture> edges = getEdgePictures();
-        boolean containerPassed = false;
-        for (VertexPicture vertexPicture : vertices) {
-            if (containerPassed) {
-                Point containedLocation = new Point(vertexPicture.getLocation());
-                containedLocation.x += δx;
-                containedLocation.y += δy;
-                setVertexLocation(vertexPicture, containedLocation);
-                for (EdgePicture edgePicture : edges) {
-                    if (edgePicture.getOriginPicture() == vertexPicture) {
-                        ArrayList containers = containerPath(edgePicture.getTerminusPicture());
-                        if (containers.contains(containerPicture)) {
-                            edgePicture.move(δx, δy);
-                        }
-                    }
+    /**
+     * Moves containerPicture to destination together with the pictures it contains, directly or indirectly, and
+     * the edge pictures between those contained pictures.
+     * The contained pictures are taken from the containment tree before anything moves, so the time needed is
+     * proportional to the size of the subtree and the number of edge pictures attached to it.
+     * @param containerPicture
+     * @param destination
+     */
+    private void moveSubtree(VertexPicture containerPicture, Point destination) {
+        int δx = destination.x - containerPicture.getLocation().x;
+        int δy = destination.y - containerPicture.getLocation().y;
+        if (δx == 0 && δy == 0) {
+            setVertexLocation(containerPicture, destination);
+            return;
+        }
+        ArrayList<VertexPicture> contained = allContainedVertices(containerPicture);
+        setVertexLocation(containerPicture, destination);
+        for (VertexPicture vertexPicture : contained) {
+            Point containedLocation = new Point(vertexPicture.getLocation());
+            containedLocation.x += δx;
+            containedLocation.y += δy;
+            setVertexLocation(vertexPicture, containedLocation);
+        }
+        Collection<VertexPicture> subtree = Collections.newSetFromMap(new IdentityHashMap<>());
+        subtree.addAll(contained);
+        for (VertexPicture vertexPicture : contained) {
+            for (EdgePicture edgePicture : incidentEdgeIndex.find(vertexPicture)) {
+                if (edgePicture.getOriginPicture() == vertexPicture && subtree.contains(edgePicture.getTerminusPicture())) {
+                    edgePicture.move(δx, δy);
+                    pictureChanged(edgePicture);
                 }
             }
-            else if (vertexPicture == containerPicture) {
-                containerPassed = true;
-            }
         }
     }
 
@@ -749,30 +933,56 @@ public class DiagramComponent extends JComponent {
     private boolean setAttachmentPoint(AbstractPicture picture, Point point) {
         if (editor.selectedEdgePictureClass() != null) {
             if (picture instanceof VertexPicture) {
-                attachmentPoint = ((VertexPicture) picture).nearestAttachmentPoint(point);
+                setAttachmentPoint(((VertexPicture) picture).nearestAttachmentPoint(point));
                 return true;
             }
         }
         else if (attachmentPoint != null) {
-            attachmentPoint = null;
+            setAttachmentPoint(null);
             return true;
         }
         return false;
     }
 
 
+    private void setAttachmentPoint(Point point) {
+        if (attachmentPoint != null) {
+            addDamage(attachmentPointBounds());
+        }
+        attachmentPoint = point;
+        if (attachmentPoint != null) {
+            addDamage(attachmentPointBounds());
+        }
+    }
+
+
+    private Rectangle attachmentPointBounds() {
+        Rectangle bounds = new Rectangle(attachmentPoint.x - attachmentPointWidth / 2, attachmentPoint.y - attachmentPointHeight / 2, attachmentPointWidth, attachmentPointHeight);
+        bounds.grow(1, 1);
+        return bounds;
+    }
+
+
+    private void clearSelectedVertices() {
+        for (VertexPicture picture : selectedVertices) {
+            addDamage(picture);
+        }
+        selectedVertices.clear();
+    }
+
+
     private void setVertexLocation(VertexPicture vertexPicture, Point location) {
         vertexPicture.setLocation(location);
+        pictureChanged(vertexPicture);
         correctEndPoints(vertexPicture);
         setComponentSize(vertexPicture.xEast(), vertexPicture.ySouth());
     }
 
 
     private void correctEndPoints(VertexPicture vertexPicture) {
-        for (EdgePicture edgePicture : getEdgePictures()) {
-            if (edgePicture.getOriginPicture() == vertexPicture || edgePicture.getTerminusPicture() == vertexPicture) {
-                edgePicture.correctEndPoint(vertexPicture);
-            }
+        for (EdgePicture edgePicture : incidentEdgeIndex.find(vertexPicture)) {
+            edgePicture.correctEndPoint(vertexPicture);
+            pictureChanged(edgePicture);
         }
     }
 
@@ -781,7 +991,7 @@ public class DiagramComponent extends JComponent {
         editPanel.setEnvironment(editor);
         EditDialog dialog = new EditDialog(editor, dialogTitle, editPanel);
         dialog.show(evt.getLocationOnScreen());
-        repaint(); // Any picture might be changed, repaint entire diagram.
+        repaintAll(); // Any picture might be changed, repaint entire diagram.
     }
 
 
@@ -825,6 +1035,7 @@ public class DiagramComponent extends JComponent {
         boolean needRepaint = false;
         if (hoverInfo != null && hoverInfo.picture instanceof EdgePicture) {
             ((EdgePicture) hoverInfo.picture).setHoverPoint(null);
+            addSceneDamage(hoverInfo.picture);
             needRepaint = true;
         }
         Location location = null;
@@ -837,6 +1048,7 @@ public class DiagramComponent extends JComponent {
         }
         else {
             ((EdgePicture) picture).setHoverPoint(point);
+            addSceneDamage(picture);
             needRepaint = true;
         }
         if (picture != null) {
@@ -850,7 +1062,7 @@ public class DiagramComponent extends JComponent {
             setToolTipText(picture.getToolTipText());
         }
         else if (hoverInfo != null) {
-            needRepaint |= hoverInfo.area != null;
+            needRepaint |= hoverInfo.setArea(null);
             hoverInfo = null;
         }
         if (editor.selectedEdgePictureClass() == null) {
@@ -860,7 +1072,7 @@ public class DiagramComponent extends JComponent {
             needRepaint |= setAttachmentPoint(picture, point);
         }
         if (needRepaint) {
-            repaint();
+            repaintDamage();
         }
     }
 
@@ -893,8 +1105,9 @@ public class DiagramComponent extends JComponent {
      * @return Top most VertexPicture with point inside.
      */
     private VertexPicture getVertexPicture(Point point) {
-        for (int i = pictures.size() - 1; i >= 0; --i) {
-            AbstractPicture picture = pictures.get(i);
+        ArrayList<AbstractPicture> candidates = picturesAt(point);
+        for (int i = candidates.size() - 1; i >= 0; --i) {
+            AbstractPicture picture = candidates.get(i);
             if (picture instanceof VertexPicture) {
                 Location location = ((VertexPicture) picture).locationOf(point);
                 if (location != Location.EXTERN) {
@@ -907,7 +1120,7 @@ public class DiagramComponent extends JComponent {
 
 
     private EdgePicture getEdgePicture(Point point) {
-        for (AbstractPicture picture : pictures) {
+        for (AbstractPicture picture : picturesAt(point)) {
             if (picture instanceof EdgePicture && picture.isLocatedAt(point)) {
                 return (EdgePicture) picture;
             }
@@ -916,58 +1129,252 @@ public class DiagramComponent extends JComponent {
     }
 
 
+    /**
+     * @param point
+     * @return Pictures that might be located at point, in drawing order.
+     */
+    private ArrayList<AbstractPicture> picturesAt(Point point) {
+        ArrayList<AbstractPicture> candidates = new ArrayList<>(pictureIndex.find(point));
+        candidates.sort(Comparator.comparingLong(pictures::key));
+        return candidates;
+    }
+
+
+    /**
+     * @param clip
+     * @return Pictures intersecting clip in drawing order, all pictures if clip is null.
+     */
+    private ArrayList<AbstractPicture> visiblePictures(Rectangle clip) {
+        if (clip == null) {
+            return getDrawingOrder();
+        }
+        ArrayList<AbstractPicture> visible = new ArrayList<>(pictureIndex.find(clip));
+        visible.sort(Comparator.comparingLong(pictures::key));
+        return visible;
+    }
+
+
+    private void addToPictures(AbstractPicture picture) {
+        pictures.add(picture);
+        pictureIndex.add(picture);
+        if (picture instanceof VertexPicture) {
+            invalidateContainment((VertexPicture) picture);
+        }
+        else if (picture instanceof EdgePicture) {
+            incidentEdgeIndex.add((EdgePicture) picture);
+        }
+        mutatedPictures.add(picture);
+        addSceneDamage(picture);
+    }
+
+
+    private void addToPictures(AbstractPicture picture, AbstractPicture successor) {
+        pictures.addBehind(picture, successor);
+        pictureIndex.add(picture);
+        if (picture instanceof VertexPicture) {
+            invalidateContainment((VertexPicture) picture);
+        }
+        else if (picture instanceof EdgePicture) {
+            incidentEdgeIndex.add((EdgePicture) picture);
+        }
+        mutatedPictures.add(picture);
+        addSceneDamage(picture);
+    }
+
+
+    private void removeFromPictures(AbstractPicture picture) {
+        Rectangle bounds = pictureIndex.getBounds(picture);
+        if (bounds != null) {
+            addSceneDamage(bounds);
+        }
+        pictures.remove(picture);
+        pictureIndex.remove(picture);
+        if (picture instanceof VertexPicture) {
+            containmentTree.remove((VertexPicture) picture);
+        }
+        else if (picture instanceof EdgePicture) {
+            incidentEdgeIndex.remove((EdgePicture) picture);
+        }
+        mutatedPictures.add(picture);
+    }
+
+
+    /**
+     * Updates the indices for changed bounds of picture, or changed origin or terminus of an edge picture, and
+     * records the old and new bounds as damaged.
+     * @param picture
+     */
+    private void pictureChanged(AbstractPicture picture) {
+        Rectangle bounds = pictureIndex.getBounds(picture);
+        if (bounds != null) {
+            addSceneDamage(bounds);
+        }
+        pictureIndex.update(picture);
+        if (picture instanceof VertexPicture) {
+            invalidateContainment((VertexPicture) picture);
+        }
+        else if (picture instanceof EdgePicture) {
+            incidentEdgeIndex.update((EdgePicture) picture);
+        }
+        mutatedPictures.add(picture);
+        addSceneDamage(picture);
+    }
+
+
+    /**
+     * Invalidates the containers of vertexPicture, of the pictures it contains and of the pictures located in it,
+     * after it is added, moved, resized or drawn in another order.
+     * @param vertexPicture
+     */
+    private void invalidateContainment(VertexPicture vertexPicture) {
+        containmentTree.invalidate(vertexPicture);
+        for (AbstractPicture picture : pictureIndex.find(vertexPicture.bounds())) {
+            if (picture instanceof VertexPicture && picture != vertexPicture && vertexPicture.isLocatedAt(((VertexPicture) picture).getLocation())) {
+                containmentTree.invalidate((VertexPicture) picture);
+            }
+        }
+    }
+
+
+    /**
+     * @param vertexPicture
+     * @return The last vertex picture drawn before vertexPicture that is located at the location of vertexPicture.
+     */
+    private VertexPicture locateContainer(VertexPicture vertexPicture) {
+        if (! pictureIndex.contains(vertexPicture)) {
+            return null;
+        }
+        Point location = vertexPicture.getLocation();
+        long key = pictures.key(vertexPicture);
+        VertexPicture container = null;
+        for (AbstractPicture picture : pictureIndex.find(location)) {
+            if (picture instanceof VertexPicture) {
+                long candidateKey = pictures.key(picture);
+                if ((container == null || pictures.key(container) < candidateKey) && candidateKey < key && picture.isLocatedAt(location)) {
+                    container = (VertexPicture) picture;
+                }
+            }
+        }
+        return container;
+    }
+
+
+    private void addSceneDamage(AbstractPicture picture) {
+        addSceneDamage(picture.paintBounds());
+    }
+
+
+    private void addSceneDamage(Rectangle area) {
+        sceneCache.invalidate(area);
+        addDamage(area);
+    }
+
+
+    private void addDamage(AbstractPicture picture) {
+        addDamage(picture.paintBounds());
+    }
+
+
+    private void addDamage(Rectangle area) {
+        if (damage == null) {
+            damage = new Rectangle(area);
+        }
+        else {
+            damage.add(area);
+        }
+    }
+
+
+    private Rectangle highlightBounds(AbstractPicture picture, Collection<DrawStyle> drawStyles) {
+        Rectangle bounds = picture.paintBounds();
+        Font font = getFont();
+        if (font != null) {
+            FontMetrics metrics = getFontMetrics(font);
+            for (DrawStyle style : drawStyles) {
+                String text = style.getText(DrawStyleKey.HIGHLIGHT_TEXT);
+                if (text != null) {
+                    bounds.add(new Rectangle(picture.xWest(), picture.ySouth() - metrics.getAscent(), metrics.stringWidth(text), metrics.getHeight()));
+                }
+            }
+        }
+        return bounds;
+    }
+
+
+    /**
+     * Brings vertexPicture, the pictures it contains and their edge pictures to the front, keeping their order.
+     * Each picture is moved in O(log n).
+     * @param vertexPicture
+     */
     private void ensureDrawnLast(VertexPicture vertexPicture) {
         ArrayList<VertexPicture> contained = allContainedVertices(vertexPicture);
-        moveToEndOfList(vertexPicture);
+        bringToFront(vertexPicture);
         for (VertexPicture picture : contained) {
-            moveToEndOfList(picture);
+            bringToFront(picture);
         }
     }
 
 
-    private void moveToEndOfList(VertexPicture vertexPicture) {
-        ArrayList<AbstractPicture> picturesToMove = new ArrayList<>();
-        picturesToMove.add(vertexPicture);
-        for (AbstractPicture picture : pictures) {
-            if (picture instanceof EdgePicture && (((EdgePicture) picture).getOriginPicture() == vertexPicture || ((EdgePicture) picture).getTerminusPicture() == vertexPicture)) {
-                picturesToMove.add(picture);
-            }
+    private void bringToFront(VertexPicture vertexPicture) {
+        ArrayList<EdgePicture> edgePictures = allEdgePictures(vertexPicture);
+        addSceneDamage(vertexPicture);
+        pictures.moveToFront(vertexPicture);
+        for (EdgePicture edgePicture : edgePictures) {
+            addSceneDamage(edgePicture);
+            pictures.moveToFront(edgePicture);
         }
-        pictures.removeAll(picturesToMove);
-        pictures.addAll(picturesToMove);
+        invalidateContainment(vertexPicture);
     }
 
 
     private ArrayList<VertexPicture> containedVertices(VertexPicture container) {
-        ArrayList<VertexPicture> contained = new ArrayList<>();
-        for (AbstractPicture picture : pictures) {
-            if (picture instanceof VertexPicture && findContainer((VertexPicture) picture) == container) {
-                contained.add((VertexPicture) picture);
-            }
-        }
+        ArrayList<VertexPicture> contained = new ArrayList<>(containmentTree.getChildren(container));
+        contained.sort(Comparator.comparingLong(pictures::key));
         return contained;
     }
 
 
     private ArrayList<VertexPicture> allContainedVertices(VertexPicture container) {
         ArrayList<VertexPicture> all = new ArrayList<>();
+        addContainedVertices(container, all);
+        return all;
+    }
+
+
+    private void addContainedVertices(VertexPicture container, ArrayList<VertexPicture> all) {
         ArrayList<VertexPicture> contained = containedVertices(container);
         all.addAll(contained);
         for (VertexPicture vertex : contained) {
-            all.addAll(allContainedVertices(vertex));
+            addContainedVertices(vertex, all);
         }
-        return all;
     }
 
 
-    private Collection<EdgePicture> allEdgePictures(VertexPicture vertexPicture) {
-        Collection<EdgePicture> all = new ArrayList<>();
-        for (EdgePicture edgePicture : page.getEdges()) {
-            if (edgePicture.getOriginPicture() == vertexPicture || edgePicture.getTerminusPicture() == vertexPicture) {
-                all.add(edgePicture);
+    /**
+     * Runs action while no other thread changes the pictures of this component.
+     */
+    void runLocked(Runnable action) {
+        synchronized (lock) {
+            action.run();
+        }
+    }
+
+
+    /**
+     * @param vertexPicture
+     * @return Edge pictures on the page with vertexPicture as origin or terminus, in drawing order.
+     */
+    private ArrayList<EdgePicture> allEdgePictures(VertexPicture vertexPicture) {
+        synchronized (lock) {
+            ArrayList<EdgePicture> all = new ArrayList<>();
+            for (EdgePicture edgePicture : incidentEdgeIndex.find(vertexPicture)) {
+                if (page.contains(edgePicture)) {
+                    all.add(edgePicture);
+                }
             }
+            all.sort(Comparator.comparingLong(pictures::key));
+            return all;
         }
-        return all;
     }
 
 
@@ -1012,38 +1419,122 @@ public class DiagramComponent extends JComponent {
 
 
     public void vertexPictureModified(VertexPicture vertexPicture) {
-        repaint();
+        synchronized (lock) {
+            pictureChanged(vertexPicture);
+        }
+        repaintDamage();
         editor.vertexPictureModified(vertexPicture);
     }
 
 
     /**
      * @param edgePicture
-     * @return index of last vertex picture from pictures that is origin or terminus of edgePicture
+     * @return origin or terminus of edgePicture, whichever is drawn last
      */
-    private int findInsertIndex(EdgePicture edgePicture) {
+    private VertexPicture lastDrawnEnd(EdgePicture edgePicture) {
         VertexPicture origin = edgePicture.getOriginPicture();
         VertexPicture terminus = edgePicture.getTerminusPicture();
-        for (int index = pictures.size() - 1; index >= 0;  --index) {
-            AbstractPicture abstractPicture = pictures.get(index);
-            if (origin == abstractPicture || terminus == abstractPicture) {
-                return index;
-            }
+        boolean originDrawn = origin != null && pictures.contains(origin);
+        boolean terminusDrawn = terminus != null && pictures.contains(terminus);
+        if (originDrawn && (! terminusDrawn || pictures.key(terminus) < pictures.key(origin))) {
+            return origin;
+        }
+        if (terminusDrawn) {
+            return terminus;
         }
         throw new IllegalStateException("No vertex found for edge.");
     }
 
 
+    /**
+     * Pictures in drawing order with their indexed bounds at the time of the snapshot.
+     * Rendering only reads the snapshot and paints the pictures, so tiles can be rendered by several threads at once.
+     */
+    private class SceneSnapshot implements SceneCache.Scene {
+
+        SceneSnapshot(Collection<AbstractPicture> pictures, Rectangle area) {
+            this.pictures = pictures.toArray(new AbstractPicture[pictures.size()]);
+            this.area = area;
+            bounds = new Rectangle[this.pictures.length];
+            for (int i = 0; i < this.pictures.length; ++i) {
+                bounds[i] = pictureIndex.getBounds(this.pictures[i]);
+                try {
+                    this.pictures[i].getShape(); // Build lazy shape before painting concurrently
+                }
+                catch (RuntimeException ex) {
+                    Logger.getLogger(DiagramComponent.class.getName()).log(Level.SEVERE, "Element shape", ex);
+                }
+            }
+        }
+
+        /**
+         * Text extents are collected per call, they are handed to the pictures when the scene is rendered.
+         */
+        @Override
+        public void render(Graphics2D g2d, Rectangle clip) {
+            Map<AbstractPicture, Rectangle> extents = new IdentityHashMap<>();
+            for (int i = 0; i < pictures.length; ++i) {
+                if (clip == null || bounds[i] == null || bounds[i].intersects(clip)) {
+                    try {
+                        extents.put(pictures[i], pictures[i].paintPicture(g2d));
+                    }
+                    catch (RuntimeException ex) {
+                        Logger.getLogger(DiagramComponent.class.getName()).log(Level.SEVERE, "Eelement paint", ex);
+                    }
+                }
+            }
+            synchronized (textExtents) {
+                textExtents.add(extents);
+            }
+        }
+
+        @Override
+        public void rendered() {
+            Map<AbstractPicture, Rectangle> painted = new IdentityHashMap<>();
+            synchronized (textExtents) {
+                for (Map<AbstractPicture, Rectangle> extents : textExtents) {
+                    painted.putAll(extents); // Each call painted the whole picture, any extent will do
+                }
+            }
+            for (Map.Entry<AbstractPicture, Rectangle> entry : painted.entrySet()) {
+                entry.getKey().painted(entry.getValue());
+            }
+            for (AbstractPicture picture : pictures) {
+                if (pictureIndex.update(picture) && area != null && ! area.contains(picture.paintBounds())) {
+                    Rectangle paintBounds = picture.paintBounds(); // Text extent grew beyond area
+                    sceneCache.invalidate(paintBounds);
+                    repaint(paintBounds);
+                }
+            }
+        }
+
+        private final AbstractPicture[] pictures;
+        private final Rectangle[] bounds;
+        private final Rectangle area;
+        private final java.util.List<Map<AbstractPicture, Rectangle>> textExtents = new ArrayList<>(); // Per render call
+    }
+
+
     private class HoverInfo {
 
         boolean setArea(Rectangle rectangle) {
             if (area == rectangle) {
                 return false;
             }
+            addAreaDamage();
             area = rectangle;
+            addAreaDamage();
             return true;
         }
 
+        private void addAreaDamage() {
+            if (area != null) {
+                Rectangle bounds = new Rectangle(area);
+                bounds.grow(2, 2);
+                addDamage(bounds);
+            }
+        }
+
         AbstractPicture picture;
         Location location;
         Rectangle area;
@@ -1059,6 +1550,19 @@ public class DiagramComponent extends JComponent {
             return new Rectangle(startPoint.x, startPoint.y, endPoint.x - startPoint.x, endPoint.y - startPoint.y);
         }
 
+        boolean isSelecting() {
+            return vertexInfos.isEmpty() && edgeInfo == null;
+        }
+
+        void addSelectionDamage() {
+            if (isSelecting() && endPoint != null) {
+                Rectangle bounds = new Rectangle(startPoint);
+                bounds.add(endPoint);
+                bounds.grow(1, 1);
+                addDamage(bounds);
+            }
+        }
+
         boolean contains(VertexPicture vertexPicture) {
             for (VertexDragInfo info : vertexInfos) {
                 if (info.picture == vertexPicture) {
@@ -1186,12 +1690,14 @@ public class DiagramComponent extends JComponent {
         public void mousePressed(MouseEvent evt) {
             if (dragInfo == null && evt.getButton() == MouseEvent.BUTTON1) {
                 startDrag(evt.getPoint());
+                repaintDamage();
             }
         }
 
         @Override
         public void mouseReleased(MouseEvent evt) {
             if (dragInfo != null && evt.getButton() == MouseEvent.BUTTON1) {
+                dragInfo.addSelectionDamage();
                 dragInfo.endPoint = evt.getPoint();
                 if (! dragInfo.vertexInfos.isEmpty()) {
                     finishVertexDragging();
@@ -1204,7 +1710,7 @@ public class DiagramComponent extends JComponent {
                 }
                 dragInfo = null;
                 setCursor(Cursor.DEFAULT_CURSOR);
-                repaint(); // Selection might be changed, repaint entire diagram;
+                repaintDamage();
             }
         }
 
@@ -1219,6 +1725,7 @@ public class DiagramComponent extends JComponent {
                     popupContextMenu(evt.getPoint());
                     break;
             }
+            repaintDamage();
         }
 
         @Override
@@ -1229,14 +1736,16 @@ public class DiagramComponent extends JComponent {
         @Override
         public void mouseDragged(MouseEvent evt) {
             if (dragInfo != null) {
+                dragInfo.addSelectionDamage();
                 dragInfo.endPoint = evt.getPoint();
+                dragInfo.addSelectionDamage();
                 if (! dragInfo.vertexInfos.isEmpty()) {
                     dragVertex(evt.getPoint());
                 }
                 if (dragInfo.edgeInfo != null) {
                     dragEdge(evt.getPoint());
                 }
-                repaint();
+                repaintDamage();
             }
         }
 
@@ -1275,18 +1784,14 @@ public class DiagramComponent extends JComponent {
         }
 
         private void undoMutation() {
-            Mutation mutation = drawHistory.getUndo();
-            if (mutation != null) {
-                mutation.undo();
-                repaint();
+            if (drawHistory.undo()) {
+                repaintDamage();
             }
         }
 
         private void redoMutation() {
-            Mutation mutation = drawHistory.getRedo();
-            if (mutation != null) {
-                mutation.redo();
-                repaint();
+            if (drawHistory.redo()) {
+                repaintDamage();
             }
         }
 
@@ -1297,7 +1802,11 @@ public class DiagramComponent extends JComponent {
 
     private final GraphEditor editor;
     private final DiagramPage page;
-    private final ArrayList<AbstractPicture> pictures = new ArrayList<>();
+    private final DrawOrder pictures = new DrawOrder();
+    private final PictureIndex pictureIndex = new PictureIndex();
+    private final Collection<AbstractPicture> mutatedPictures = new LinkedHashSet<>(); // Since the last change of draw history
+    private final ContainmentTree containmentTree = new ContainmentTree(this::locateContainer);
+    private final IncidentEdgeIndex incidentEdgeIndex = new IncidentEdgeIndex();
 
     private AbstractPicture selectedPicture;
 
@@ -1306,6 +1815,9 @@ public class DiagramComponent extends JComponent {
 
     private final Map<AbstractPicture, Collection<DrawStyle>> highlights = new HashMap<>();
 
+    private Rectangle damage;
+    private final SceneCache sceneCache;
+
     private Point attachmentPoint;
 
     private AbstractEditPanel editPanel;
@@ -5,9 +5,22 @@
 package bka.graph.swing;
 
 import java.awt.*;
+import java.io.*;
 import java.util.*;
-
-
+import java.util.concurrent.*;
+import java.util.function.*;
+
+
+/**
+ * Mutations of a diagram that can be undone and redone. The history is bounded by a number of mutations
+ * and by an estimate of the memory they keep, the oldest mutations are dropped when a bound is exceeded.
+ * Relocations, resizements and transformations of the same pictures that follow each other within the
+ * coalesce window are kept as one mutation.
+ * The history can be written in binary form and read in a later session, pictures are referred to by number.
+ * Every CHECKPOINT_INTERVAL mutations the state and drawing order of the pictures is kept, so jumping to any
+ * index restores the nearest checkpoint before it and redoes the few mutations in between. Checkpoints count in
+ * the estimated size of the history.
+ */
 class DrawHistory {
 
 
@@ -16,8 +29,20 @@ class DrawHistory {
     }
 
 
-    DrawHistory(DiagramComponent diagramComponent) {
+    /**
+     * @param diagramComponent
+     * @param capacity maximum number of mutations kept
+     * @param budget maximum estimated number of bytes kept by the mutations, the latest mutation is kept anyway
+     * @param coalesceWindow milliseconds within which a mutation can be coalesced with the previous one
+     */
+    DrawHistory(DiagramComponent diagramComponent, int capacity, long budget, long coalesceWindow) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
         this.diagramComponent = diagramComponent;
+        mutations = new AbstractMutation[capacity];
+        this.budget = budget;
+        this.coalesceWindow = TimeUnit.MILLISECONDS.toNanos(coalesceWindow);
     }
 
 
@@ -35,8 +60,27 @@ class DrawHistory {
     }
 
 
+    /**
+     * @return View of the mutations in order, oldest first
+     */
     java.util.List<Mutation> getMutattions() {
-        return Collections.unmodifiableList(history);
+        return history;
+    }
+
+
+    /**
+     * @return Number of mutations dropped because a bound was exceeded
+     */
+    int getDroppedCount() {
+        return droppedCount;
+    }
+
+
+    /**
+     * @return Estimated number of bytes kept by the mutations
+     */
+    long getEstimatedSize() {
+        return estimatedSize;
     }
 
 
@@ -45,6 +89,84 @@ class DrawHistory {
     }
 
 
+    /**
+     * @return Pictures that the mutations refer to
+     */
+    Collection<AbstractPicture> getPictures() {
+        Collection<AbstractPicture> pictures = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < count; ++i) {
+            mutation(i).collectPictures(pictures);
+        }
+        return pictures;
+    }
+
+
+    /**
+     * Writes the mutations that refer to numbered pictures only: the mutations from index back to the latest
+     * mutation that refers to a picture without number, and on up to the next one.
+     * @param output
+     * @param numbers number of a picture, negative if the picture has no number
+     * @throws IOException
+     */
+    void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException {
+        int start = index;
+        while (start > 0 && mutation(start - 1).isNumbered(numbers)) {
+            start--;
+        }
+        int end = index;
+        while (end < count && mutation(end).isNumbered(numbers)) {
+            end++;
+        }
+        output.writeInt(end - start);
+        output.writeInt(index - start);
+        for (int i = start; i < end; ++i) {
+            mutation(i).write(output, numbers);
+        }
+    }
+
+
+    /**
+     * Replaces the mutations by the mutations written by a history of the same diagram, listeners are not notified.
+     * Checkpoints of the restored index and positions are taken when the diagram first leaves them, so reading
+     * does not need the diagram.
+     * @param input
+     * @param pictures picture by number
+     * @throws IOException
+     */
+    void read(DataInputStream input, IntFunction<AbstractPicture> pictures) throws IOException {
+        int readCount = input.readInt();
+        int readIndex = input.readInt();
+        if (readCount < 0 || readIndex < 0 || readCount < readIndex) {
+            throw new IOException("Invalid history " + readCount + ", " + readIndex);
+        }
+        java.util.List<AbstractMutation> read = new ArrayList<>(readCount);
+        try {
+            for (int i = 0; i < readCount; ++i) {
+                read.add(readMutation(input, pictures));
+            }
+        }
+        catch (ClassCastException | IndexOutOfBoundsException | NullPointerException ex) {
+            throw new IOException("Invalid history", ex);
+        }
+        Arrays.fill(mutations, null);
+        checkpoints.clear();
+        pendingCheckpoints.clear();
+        first = 0;
+        count = 0;
+        estimatedSize = 0;
+        for (AbstractMutation mutation : read) {
+            append(mutation);
+        }
+        index = Math.max(0, count - (readCount - readIndex));
+        coalescable = false;
+        long firstKey = (droppedCount + CHECKPOINT_INTERVAL - 1) / CHECKPOINT_INTERVAL * CHECKPOINT_INTERVAL;
+        for (long key = firstKey; key <= droppedCount + (long) count; key += CHECKPOINT_INTERVAL) {
+            pendingCheckpoints.add(key);
+        }
+        pendingCheckpoints.add(droppedCount + (long) index);
+    }
+
+
     void addVertexInsertion(VertexPicture vertexPicture) {
         addToHistory(new PictureInsertion(vertexPicture));
     }
@@ -84,37 +206,185 @@ class DrawHistory {
     }
 
 
-    Mutation getUndo() {
+    /**
+     * Undoes or redoes mutations until target mutations are done, listeners are notified once afterwards.
+     * If undoing or redoing mutation by mutation takes more than CHECKPOINT_INTERVAL mutations, the nearest
+     * checkpoint before target is restored when that is closer to target.
+     * @param target number of mutations to be done
+     * @return true if the index changed
+     */
+    boolean jumpTo(int target) {
+        if (target < 0 || count < target || target == index) {
+            return false;
+        }
+        leaving();
+        Map.Entry<Long, Checkpoint> checkpoint = checkpoints.floorEntry(droppedCount + (long) target);
+        if (checkpoint != null && Math.abs(target - index) > CHECKPOINT_INTERVAL) {
+            int checkpointIndex = (int) (checkpoint.getKey() - droppedCount);
+            if (target - checkpointIndex < Math.abs(target - index)) {
+                checkpoint.getValue().restore();
+                index = checkpointIndex;
+            }
+        }
+        while (index < target) {
+            leaving();
+            mutation(index).redo();
+            index++;
+        }
+        while (index > target) {
+            leaving();
+            index--;
+            mutation(index).undo();
+        }
+        coalescable = false;
+        notifyListeners();
+        return true;
+    }
+
+
+    /**
+     * Undoes the last done mutation, listeners are notified after it is undone.
+     * @return true if a mutation was undone
+     */
+    boolean undo() {
         if (index > 0) {
+            leaving();
             index--;
+            mutation(index).undo();
+            coalescable = false;
             notifyListeners();
-            return history.get(index);
+            return true;
         }
-        return null;
+        return false;
     }
 
 
-    Mutation getRedo() {
-        if (index < history.size()) {
-            Mutation mutation = history.get(index);
+    /**
+     * Redoes the last undone mutation, listeners are notified after it is redone.
+     * @return true if a mutation was redone
+     */
+    boolean redo() {
+        if (index < count) {
+            leaving();
+            mutation(index).redo();
             index++;
+            coalescable = false;
             notifyListeners();
-            return mutation;
+            return true;
         }
-        return null;
+        return false;
     }
 
 
-    private void addToHistory(Mutation mutation) {
-        while (index < history.size()) {
-            history.removeLast();
+    private void addToHistory(AbstractMutation mutation) {
+        long time = System.nanoTime();
+        // Only the latest mutation, still undoable and not undone or redone since, absorbs
+        AbstractMutation latest = (coalescable && index == count) ? mutation(count - 1) : null;
+        long latestSize = (latest != null) ? latest.estimatedSize() : 0;
+        if (latest != null && time - lastAddTime < coalesceWindow && latest.absorb(mutation)) {
+            estimatedSize += latest.estimatedSize() - latestSize;
+            lastAddTime = time;
+            if (checkpoints.containsKey(droppedCount + (long) count)) {
+                takeCheckpoint();
+            }
+            notifyListeners();
+            return;
+        }
+        lastAddTime = time;
+        coalescable = true;
+        while (index < count) {
+            count--;
+            int last = slot(count);
+            estimatedSize -= mutations[last].estimatedSize();
+            mutations[last] = null;
+        }
+        discardCheckpoints(checkpoints.tailMap(droppedCount + (long) index, false));
+        pendingCheckpoints.tailSet(droppedCount + (long) index, false).clear();
+        append(mutation);
+        index = count;
+        if ((droppedCount + (long) count) % CHECKPOINT_INTERVAL == 0) {
+            takeCheckpoint();
         }
-        history.add(mutation);
-        index++;
         notifyListeners();
     }
 
 
+    private void append(AbstractMutation mutation) {
+        if (count == mutations.length) {
+            dropOldest();
+        }
+        mutations[slot(count)] = mutation;
+        count++;
+        estimatedSize += mutation.estimatedSize();
+        while (estimatedSize > budget && count > 1) {
+            dropOldest();
+        }
+    }
+
+
+    private void dropOldest() {
+        estimatedSize -= mutations[first].estimatedSize();
+        mutations[first] = null;
+        first = (first + 1) % mutations.length;
+        count--;
+        droppedCount++;
+        discardCheckpoints(checkpoints.headMap((long) droppedCount));
+        pendingCheckpoints.headSet((long) droppedCount).clear();
+    }
+
+
+    /**
+     * Keeps the state of the diagram after the latest mutation, its estimated size counts in the budget.
+     * A checkpoint taking more than a quarter of the budget is not kept, jumps then undo and redo all the way.
+     */
+    private void takeCheckpoint() {
+        long key = droppedCount + (long) count;
+        discardCheckpoints(checkpoints.subMap(key, true, key, true));
+        Checkpoint checkpoint = new Checkpoint(diagramComponent.getDrawingOrder());
+        if (checkpoint.estimatedSize() <= budget / 4) {
+            checkpoints.put(key, checkpoint);
+            estimatedSize += checkpoint.estimatedSize();
+            while (estimatedSize > budget && count > 1) {
+                dropOldest();
+            }
+        }
+    }
+
+
+    /**
+     * Takes the pending checkpoint of the restored position the diagram is at, before undoing or redoing from it.
+     * The checkpoint is only kept if it fits in the budget, no mutations are dropped while undoing or redoing.
+     */
+    private void leaving() {
+        long key = droppedCount + (long) index;
+        if (pendingCheckpoints.remove(key)) {
+            Checkpoint checkpoint = new Checkpoint(diagramComponent.getDrawingOrder());
+            if (checkpoint.estimatedSize() <= budget / 4 && estimatedSize + checkpoint.estimatedSize() <= budget) {
+                checkpoints.put(key, checkpoint);
+                estimatedSize += checkpoint.estimatedSize();
+            }
+        }
+    }
+
+
+    private void discardCheckpoints(SortedMap<Long, Checkpoint> discarded) {
+        for (Checkpoint checkpoint : discarded.values()) {
+            estimatedSize -= checkpoint.estimatedSize();
+        }
+        discarded.clear();
+    }
+
+
+    private AbstractMutation mutation(int position) {
+        return mutations[slot(position)];
+    }
+
+
+    private int slot(int position) {
+        return (first + position) % mutations.length;
+    }
+
+
     private void notifyListeners() {
         synchronized (listeners) {
             for (Listener listener : listeners) {
@@ -124,23 +394,179 @@ class DrawHistory {
     }
 
 
+    private static long pictureSize(AbstractPicture picture) {
+        if (picture instanceof EdgePicture) {
+            EdgePicture edgePicture = (EdgePicture) picture;
+            return PICTURE_SIZE + pointsSize(edgePicture.getXPoints()) + pointsSize(edgePicture.getYPoints());
+        }
+        return PICTURE_SIZE;
+    }
+
+
+    private static long pointsSize(int[] points) {
+        return (points != null) ? ARRAY_SIZE + (long) Integer.BYTES * points.length : 0;
+    }
+
+
+    private static int[] interleave(int[] xPoints, int[] yPoints) {
+        int[] points = new int[xPoints.length * 2];
+        for (int i = 0; i < xPoints.length; ++i) {
+            points[i * 2] = xPoints[i];
+            points[i * 2 + 1] = yPoints[i];
+        }
+        return points;
+    }
+
+
+    private static int[] replace(int[] points, int index, int count, int[] replacement) {
+        int[] replaced = new int[points.length + replacement.length - count * 2];
+        System.arraycopy(points, 0, replaced, 0, index * 2);
+        System.arraycopy(replacement, 0, replaced, index * 2, replacement.length);
+        System.arraycopy(points, (index + count) * 2, replaced, index * 2 + replacement.length, points.length - (index + count) * 2);
+        return replaced;
+    }
+
+
+    private static boolean samePoint(int[] points, int index, int[] otherPoints, int otherIndex) {
+        return points[index * 2] == otherPoints[otherIndex * 2] && points[index * 2 + 1] == otherPoints[otherIndex * 2 + 1];
+    }
+
+
+    private AbstractMutation readMutation(DataInputStream input, IntFunction<AbstractPicture> pictures) throws IOException {
+        byte kind = input.readByte();
+        switch (kind) {
+            case INSERTION:
+                return new PictureInsertion(readVertexPictures(input, pictures), readEdgePictures(input, pictures));
+            case DELETION:
+                return new PictureDeletion(readVertexPictures(input, pictures), readEdgePictures(input, pictures));
+            case RELOCATION: {
+                Map<VertexPicture, Point> originalLocations = new HashMap<>();
+                Map<VertexPicture, Point> locations = new HashMap<>();
+                int size = input.readInt();
+                for (int i = 0; i < size; ++i) {
+                    VertexPicture picture = (VertexPicture) readPicture(input, pictures);
+                    originalLocations.put(picture, new Point(input.readInt(), input.readInt()));
+                    locations.put(picture, new Point(input.readInt(), input.readInt()));
+                }
+                return new VertexRelocation(originalLocations, locations);
+            }
+            case RESIZEMENT: {
+                Map<VertexPicture, Dimension> originalSizes = new HashMap<>();
+                Map<VertexPicture, Dimension> sizes = new HashMap<>();
+                int size = input.readInt();
+                for (int i = 0; i < size; ++i) {
+                    VertexPicture picture = (VertexPicture) readPicture(input, pictures);
+                    originalSizes.put(picture, new Dimension(input.readInt(), input.readInt()));
+                    sizes.put(picture, new Dimension(input.readInt(), input.readInt()));
+                }
+                return new VertexResizement(originalSizes, sizes);
+            }
+            case TRANSFORMATION: {
+                EdgePicture picture = (EdgePicture) readPicture(input, pictures);
+                int pointIndex = input.readInt();
+                int[] originalPoints = readInts(input);
+                int[] points = readInts(input);
+                if (pointIndex < 0 || originalPoints.length % 2 != 0 || points.length % 2 != 0) {
+                    throw new IOException("Invalid edge transformation");
+                }
+                return new EdgeTransformation(picture, pointIndex, originalPoints, points);
+            }
+            default:
+                throw new IOException("Invalid mutation kind " + kind);
+        }
+    }
+
+
+    private static Collection<VertexPicture> readVertexPictures(DataInputStream input, IntFunction<AbstractPicture> pictures) throws IOException {
+        int size = input.readInt();
+        Collection<VertexPicture> vertexPictures = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            vertexPictures.add((VertexPicture) readPicture(input, pictures));
+        }
+        return vertexPictures;
+    }
+
+
+    private static Collection<EdgePicture> readEdgePictures(DataInputStream input, IntFunction<AbstractPicture> pictures) throws IOException {
+        int size = input.readInt();
+        Collection<EdgePicture> edgePictures = new ArrayList<>();
+        for (int i = 0; i < size; ++i) {
+            edgePictures.add((EdgePicture) readPicture(input, pictures));
+        }
+        return edgePictures;
+    }
+
+
+    private static AbstractPicture readPicture(DataInputStream input, IntFunction<AbstractPicture> pictures) throws IOException {
+        int number = input.readInt();
+        AbstractPicture picture = pictures.apply(number);
+        if (picture == null) {
+            throw new IOException("Invalid picture number " + number);
+        }
+        return picture;
+    }
+
+
+    private static int[] readInts(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid length " + length);
+        }
+        int[] values = new int[length];
+        for (int i = 0; i < length; ++i) {
+            values[i] = input.readInt();
+        }
+        return values;
+    }
+
+
+    private static void writeInts(DataOutputStream output, int[] values) throws IOException {
+        output.writeInt(values.length);
+        for (int value : values) {
+            output.writeInt(value);
+        }
+    }
+
+
+    private static void writePictures(DataOutputStream output, Collection<? extends AbstractPicture> pictures, ToIntFunction<AbstractPicture> numbers) throws IOException {
+        output.writeInt(pictures.size());
+        for (AbstractPicture picture : pictures) {
+            output.writeInt(numbers.applyAsInt(picture));
+        }
+    }
+
+
     private abstract class AbstractMutation implements Mutation {
 
-        @Override
-        public void undo() {
-            revert();
+        abstract void collectPictures(Collection<AbstractPicture> pictures);
+
+        abstract void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException;
+
+        boolean isNumbered(ToIntFunction<AbstractPicture> numbers) {
+            Collection<AbstractPicture> pictures = new ArrayList<>();
+            collectPictures(pictures);
+            for (AbstractPicture picture : pictures) {
+                if (numbers.applyAsInt(picture) < 0) {
+                    return false;
+                }
+            }
+            return true;
         }
 
-        @Override
-        public void redo() {
-            revert();
+        /**
+         * Coalesces given mutation, done directly after this one, into this mutation.
+         * The original state is kept by this mutation so undoing it reverts both.
+         * @param next
+         * @return true if next is coalesced and does not need to be kept
+         */
+        boolean absorb(Mutation next) {
+            return false;
         }
 
-        abstract protected void revert();
     }
 
 
-    private class PictureInsertion implements Mutation {
+    private class PictureInsertion extends AbstractMutation {
 
         PictureInsertion(VertexPicture picture) {
             vertexPictures.add(picture);
@@ -150,6 +576,42 @@ class DrawHistory {
             edgePictures.add(picture);
         }
 
+        PictureInsertion(Collection<VertexPicture> vertexPictures, Collection<EdgePicture> edgePictures) {
+            this.vertexPictures.addAll(vertexPictures);
+            this.edgePictures.addAll(edgePictures);
+        }
+
+        @Override
+        void collectPictures(Collection<AbstractPicture> pictures) {
+            pictures.addAll(vertexPictures);
+            pictures.addAll(edgePictures);
+        }
+
+        @Override
+        void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException {
+            output.writeByte(INSERTION);
+            writePictures(output, vertexPictures, numbers);
+            writePictures(output, edgePictures, numbers);
+        }
+
+        /**
+         * Inserted pictures are kept by the mutation only while it is undone. They are counted either way,
+         * the size of a mutation must not change while it is in the history.
+         */
+        @Override
+        public long estimatedSize() {
+            if (size == 0) {
+                size = MUTATION_SIZE;
+                for (VertexPicture picture : vertexPictures) {
+                    size += REFERENCE_SIZE + pictureSize(picture);
+                }
+                for (EdgePicture picture : edgePictures) {
+                    size += REFERENCE_SIZE + pictureSize(picture);
+                }
+            }
+            return size;
+        }
+
         @Override
         public void undo() {
             diagramComponent.removePictures(vertexPictures, edgePictures);
@@ -162,11 +624,12 @@ class DrawHistory {
 
         private final Collection<VertexPicture> vertexPictures = new ArrayList<>();
         private final Collection<EdgePicture> edgePictures = new ArrayList<>();
+        private long size;
 
     }
 
 
-    private class PictureDeletion implements Mutation {
+    private class PictureDeletion extends AbstractMutation {
 
         PictureDeletion(EdgePicture edgePicture) {
             edgePictures.add(edgePicture);
@@ -177,6 +640,41 @@ class DrawHistory {
             this.edgePictures.addAll(edgePictures);
         }
 
+        PictureDeletion(Collection<VertexPicture> vertexPictures, Collection<EdgePicture> edgePictures) {
+            this.vertexPictures.addAll(vertexPictures);
+            this.edgePictures.addAll(edgePictures);
+        }
+
+        @Override
+        void collectPictures(Collection<AbstractPicture> pictures) {
+            pictures.addAll(vertexPictures);
+            pictures.addAll(edgePictures);
+        }
+
+        @Override
+        void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException {
+            output.writeByte(DELETION);
+            writePictures(output, vertexPictures, numbers);
+            writePictures(output, edgePictures, numbers);
+        }
+
+        /**
+         * Deleted pictures are kept by the mutation only.
+         */
+        @Override
+        public long estimatedSize() {
+            if (size == 0) {
+                size = MUTATION_SIZE;
+                for (VertexPicture picture : vertexPictures) {
+                    size += REFERENCE_SIZE + pictureSize(picture);
+                }
+                for (EdgePicture picture : edgePictures) {
+                    size += REFERENCE_SIZE + pictureSize(picture);
+                }
+            }
+            return size;
+        }
+
         @Override
         public void undo() {
             diagramComponent.insertPictures(vertexPictures, edgePictures);
@@ -189,83 +687,331 @@ class DrawHistory {
 
         private final Collection<VertexPicture> vertexPictures = new ArrayList<>();
         private final Collection<EdgePicture> edgePictures = new ArrayList<>();
+        private long size;
 
     }
 
 
+    /**
+     * Keeps the locations of the relocated pictures before and after relocation, so it can be undone and redone
+     * independent of other mutations, like when a checkpoint is restored.
+     */
     private class VertexRelocation extends AbstractMutation {
 
         VertexRelocation(Map<VertexPicture, Point> relocations) {
-            this.relocations = new HashMap<>(relocations);
+            for (Map.Entry<VertexPicture, Point> entry : relocations.entrySet()) {
+                originalLocations.put(entry.getKey(), new Point(entry.getValue()));
+                locations.put(entry.getKey(), new Point(entry.getKey().getLocation()));
+            }
+        }
+
+        VertexRelocation(Map<VertexPicture, Point> originalLocations, Map<VertexPicture, Point> locations) {
+            this.originalLocations.putAll(originalLocations);
+            this.locations.putAll(locations);
         }
 
         @Override
-        protected void revert() {
-            for (Map.Entry<VertexPicture, Point> entry : relocations.entrySet()) {
+        public long estimatedSize() {
+            return MUTATION_SIZE + locations.size() * 2 * (MAP_ENTRY_SIZE + POINT_SIZE);
+        }
+
+        @Override
+        void collectPictures(Collection<AbstractPicture> pictures) {
+            pictures.addAll(locations.keySet());
+        }
+
+        @Override
+        void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException {
+            output.writeByte(RELOCATION);
+            output.writeInt(locations.size());
+            for (Map.Entry<VertexPicture, Point> entry : locations.entrySet()) {
+                Point originalLocation = originalLocations.get(entry.getKey());
+                output.writeInt(numbers.applyAsInt(entry.getKey()));
+                output.writeInt(originalLocation.x);
+                output.writeInt(originalLocation.y);
+                output.writeInt(entry.getValue().x);
+                output.writeInt(entry.getValue().y);
+            }
+        }
+
+        @Override
+        boolean absorb(Mutation next) {
+            if (! (next instanceof VertexRelocation) || ! locations.keySet().equals(((VertexRelocation) next).locations.keySet())) {
+                return false;
+            }
+            locations.putAll(((VertexRelocation) next).locations);
+            return true;
+        }
+
+        @Override
+        public void undo() {
+            relocate(originalLocations);
+        }
+
+        @Override
+        public void redo() {
+            relocate(locations);
+        }
+
+        private void relocate(Map<VertexPicture, Point> destinations) {
+            for (Map.Entry<VertexPicture, Point> entry : destinations.entrySet()) {
                 VertexPicture picture = entry.getKey();
-                Point originalLocation = entry.getValue();
-                Point currentLocation = picture.getLocation();
-                diagramComponent.revertVertexMutation(picture, originalLocation, picture.getSize());
-                entry.setValue(currentLocation);
+                diagramComponent.revertVertexMutation(picture, new Point(entry.getValue()), picture.getSize());
             }
         }
 
-        private final Map<VertexPicture, Point> relocations;
+        private final Map<VertexPicture, Point> originalLocations = new HashMap<>();
+        private final Map<VertexPicture, Point> locations = new HashMap<>();
 
     }
 
 
     private class VertexResizement extends AbstractMutation {
 
-        public VertexResizement(Map<VertexPicture, Dimension> resizements) {
-            this.resizements = new HashMap<>(resizements);
+        VertexResizement(Map<VertexPicture, Dimension> resizements) {
+            for (Map.Entry<VertexPicture, Dimension> entry : resizements.entrySet()) {
+                originalSizes.put(entry.getKey(), new Dimension(entry.getValue()));
+                sizes.put(entry.getKey(), new Dimension(entry.getKey().getSize()));
+            }
+        }
+
+        VertexResizement(Map<VertexPicture, Dimension> originalSizes, Map<VertexPicture, Dimension> sizes) {
+            this.originalSizes.putAll(originalSizes);
+            this.sizes.putAll(sizes);
         }
 
         @Override
-        protected void revert() {
-            for (Map.Entry<VertexPicture, Dimension> entry : resizements.entrySet()) {
+        public long estimatedSize() {
+            return MUTATION_SIZE + sizes.size() * 2 * (MAP_ENTRY_SIZE + POINT_SIZE);
+        }
+
+        @Override
+        void collectPictures(Collection<AbstractPicture> pictures) {
+            pictures.addAll(sizes.keySet());
+        }
+
+        @Override
+        void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException {
+            output.writeByte(RESIZEMENT);
+            output.writeInt(sizes.size());
+            for (Map.Entry<VertexPicture, Dimension> entry : sizes.entrySet()) {
+                Dimension originalSize = originalSizes.get(entry.getKey());
+                output.writeInt(numbers.applyAsInt(entry.getKey()));
+                output.writeInt(originalSize.width);
+                output.writeInt(originalSize.height);
+                output.writeInt(entry.getValue().width);
+                output.writeInt(entry.getValue().height);
+            }
+        }
+
+        @Override
+        boolean absorb(Mutation next) {
+            if (! (next instanceof VertexResizement) || ! sizes.keySet().equals(((VertexResizement) next).sizes.keySet())) {
+                return false;
+            }
+            sizes.putAll(((VertexResizement) next).sizes);
+            return true;
+        }
+
+        @Override
+        public void undo() {
+            resize(originalSizes);
+        }
+
+        @Override
+        public void redo() {
+            resize(sizes);
+        }
+
+        private void resize(Map<VertexPicture, Dimension> destinations) {
+            for (Map.Entry<VertexPicture, Dimension> entry : destinations.entrySet()) {
                 VertexPicture picture = entry.getKey();
-                Dimension originalSize = entry.getValue();
-                Dimension currentSize = picture.getSize();
-                diagramComponent.revertVertexMutation(picture, picture.getLocation(), originalSize);
-                entry.setValue(currentSize);
+                diagramComponent.revertVertexMutation(picture, picture.getLocation(), new Dimension(entry.getValue()));
             }
         }
 
-        private final Map<VertexPicture, Dimension> resizements;
+        private final Map<VertexPicture, Dimension> originalSizes = new HashMap<>();
+        private final Map<VertexPicture, Dimension> sizes = new HashMap<>();
 
     }
 
 
+    /**
+     * Keeps the points that differ between the original and the transformed edge only: from index, the original
+     * points replace the transformed points when undone and the other way around when redone.
+     */
     private class EdgeTransformation extends AbstractMutation {
 
-        public EdgeTransformation(EdgePicture picture, int[] originalXPoints, int[] originalYPoints) {
+        EdgeTransformation(EdgePicture picture, int[] originalXPoints, int[] originalYPoints) {
             this.picture = picture;
-            this.originalXPoints = originalXPoints;
-            this.originalYPoints = originalYPoints;
+            setDelta(interleave(originalXPoints, originalYPoints), currentPoints());
+        }
+
+        EdgeTransformation(EdgePicture picture, int index, int[] originalPoints, int[] points) {
+            this.picture = picture;
+            this.index = index;
+            this.originalPoints = originalPoints;
+            this.points = points;
+        }
+
+        @Override
+        public long estimatedSize() {
+            return MUTATION_SIZE + pointsSize(originalPoints) + pointsSize(points);
+        }
+
+        @Override
+        void collectPictures(Collection<AbstractPicture> pictures) {
+            pictures.add(picture);
+        }
+
+        @Override
+        void write(DataOutputStream output, ToIntFunction<AbstractPicture> numbers) throws IOException {
+            output.writeByte(TRANSFORMATION);
+            output.writeInt(numbers.applyAsInt(picture));
+            output.writeInt(index);
+            writeInts(output, originalPoints);
+            writeInts(output, points);
+        }
+
+        @Override
+        boolean absorb(Mutation next) {
+            if (! (next instanceof EdgeTransformation) || ((EdgeTransformation) next).picture != picture) {
+                return false;
+            }
+            EdgeTransformation transformation = (EdgeTransformation) next;
+            int[] current = currentPoints();
+            int[] previous = replace(current, transformation.index, transformation.points.length / 2, transformation.originalPoints);
+            setDelta(replace(previous, index, points.length / 2, originalPoints), current);
+            return true;
+        }
+
+        @Override
+        public void undo() {
+            diagramComponent.revertEdgeMutation(picture, index, points.length / 2, originalPoints);
         }
 
         @Override
-        protected void revert() {
-            int[] currentXPoints = picture.getXPoints();
-            int[] currentYPoints = picture.getYPoints();
-            picture.setXPoints(originalXPoints);
-            picture.setYPoints(originalYPoints);
-            originalXPoints = currentXPoints;
-            originalYPoints = currentYPoints;
+        public void redo() {
+            diagramComponent.revertEdgeMutation(picture, index, originalPoints.length / 2, points);
+        }
+
+        private void setDelta(int[] original, int[] transformed) {
+            int originalCount = original.length / 2;
+            int transformedCount = transformed.length / 2;
+            int prefix = 0;
+            while (prefix < originalCount && prefix < transformedCount && samePoint(original, prefix, transformed, prefix)) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < originalCount - prefix && suffix < transformedCount - prefix && samePoint(original, originalCount - 1 - suffix, transformed, transformedCount - 1 - suffix)) {
+                suffix++;
+            }
+            index = prefix;
+            originalPoints = Arrays.copyOfRange(original, prefix * 2, (originalCount - suffix) * 2);
+            points = Arrays.copyOfRange(transformed, prefix * 2, (transformedCount - suffix) * 2);
+        }
+
+        private int[] currentPoints() {
+            return interleave(picture.getXPoints(), picture.getYPoints());
         }
 
         private final EdgePicture picture;
-        private int[] originalXPoints;
-        private int[] originalYPoints;
+        private int index;
+        private int[] originalPoints;
+        private int[] points;
 
     }
 
 
+    /**
+     * State of the pictures on the diagram after a number of mutations, never modified.
+     */
+    private class Checkpoint {
+
+        Checkpoint(java.util.List<AbstractPicture> drawingOrder) {
+            this.drawingOrder = drawingOrder;
+            long size = MUTATION_SIZE + ARRAY_SIZE + drawingOrder.size() * REFERENCE_SIZE;
+            for (AbstractPicture picture : drawingOrder) {
+                if (picture instanceof VertexPicture) {
+                    VertexPicture vertexPicture = (VertexPicture) picture;
+                    locations.put(vertexPicture, new Rectangle(vertexPicture.getLocation(), vertexPicture.getSize()));
+                    size += MAP_ENTRY_SIZE + RECTANGLE_SIZE;
+                }
+                else {
+                    EdgePicture edgePicture = (EdgePicture) picture;
+                    int[] points = interleave(edgePicture.getXPoints(), edgePicture.getYPoints());
+                    edgePoints.put(edgePicture, points);
+                    size += MAP_ENTRY_SIZE + pointsSize(points);
+                }
+            }
+            estimatedSize = size;
+        }
+
+        long estimatedSize() {
+            return estimatedSize;
+        }
+
+        void restore() {
+            diagramComponent.restorePictures(Collections.unmodifiableMap(locations), Collections.unmodifiableMap(edgePoints), Collections.unmodifiableList(drawingOrder));
+        }
+
+        private final java.util.List<AbstractPicture> drawingOrder;
+        private final Map<VertexPicture, Rectangle> locations = new HashMap<>();
+        private final Map<EdgePicture, int[]> edgePoints = new HashMap<>();
+        private final long estimatedSize;
+    }
+
+
     private final DiagramComponent diagramComponent;
-    private final LinkedList<Mutation> history = new LinkedList<>();
     private final Collection<Listener> listeners = new ArrayList<>();
 
+    // Ring buffer of mutations, the oldest at first
+    private final AbstractMutation[] mutations;
+    private int first;
+    private int count;
     private int index;
+    private final long budget;
+    private long estimatedSize;
+    private int droppedCount;
+    private final TreeMap<Long, Checkpoint> checkpoints = new TreeMap<>(); // By number of mutations done since the first one ever kept
+    private final TreeSet<Long> pendingCheckpoints = new TreeSet<>(); // Restored positions without checkpoint yet
+    private final long coalesceWindow;
+    private long lastAddTime;
+    private boolean coalescable;
+
+    private final java.util.List<Mutation> history = new AbstractList<Mutation>() {
+
+        @Override
+        public Mutation get(int position) {
+            if (position < 0 || count <= position) {
+                throw new IndexOutOfBoundsException("Index " + position + ", size " + count);
+            }
+            return mutation(position);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+    };
+
+    // Rough estimates of object sizes in bytes
+    private static final long REFERENCE_SIZE = 8;
+    private static final long MUTATION_SIZE = 64;
+    private static final long MAP_ENTRY_SIZE = 48;
+    private static final long POINT_SIZE = 24;
+    private static final long RECTANGLE_SIZE = 32;
+    private static final long ARRAY_SIZE = 16;
+    private static final long PICTURE_SIZE = 256;
+
+    private static final int CHECKPOINT_INTERVAL = 64;
+
+    // Kinds of written mutations
+    private static final byte INSERTION = 1;
+    private static final byte DELETION = 2;
+    private static final byte RELOCATION = 3;
+    private static final byte RESIZEMENT = 4;
+    private static final byte TRANSFORMATION = 5;
 
 }
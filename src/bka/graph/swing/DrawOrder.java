@@ -0,0 +1,125 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import java.util.*;
+
+
+/**
+ * Drawing order of the pictures of a diagram, from back to front.
+ * Every picture has a key and pictures are drawn in order of their keys. Keys are spaced, so a picture can be
+ * inserted between two others without changing other keys; all keys are renumbered only when there is no space
+ * left. Adding, removing and bringing a picture to the front are O(log n), comparing the drawing order of two
+ * pictures is O(1).
+ */
+class DrawOrder implements Iterable<AbstractPicture> {
+
+
+    /**
+     * Adds picture in front of all other pictures.
+     * @param picture
+     */
+    void add(AbstractPicture picture) {
+        if (! order.isEmpty() && order.lastKey() > Long.MAX_VALUE - SPACING) {
+            renumber();
+        }
+        put(picture, (order.isEmpty()) ? 0 : order.lastKey() + SPACING);
+    }
+
+
+    /**
+     * Adds picture right behind successor.
+     * @param picture
+     * @param successor
+     */
+    void addBehind(AbstractPicture picture, AbstractPicture successor) {
+        Long successorKey = keys.get(successor);
+        if (successorKey == null) {
+            throw new IllegalArgumentException("Picture not in drawing order");
+        }
+        Long predecessorKey = order.lowerKey(successorKey);
+        if ((predecessorKey != null) ? successorKey - predecessorKey < 2 : successorKey < Long.MIN_VALUE + SPACING) {
+            renumber();
+            successorKey = keys.get(successor);
+            predecessorKey = order.lowerKey(successorKey);
+        }
+        long key = (predecessorKey != null) ? predecessorKey + (successorKey - predecessorKey) / 2 : successorKey - SPACING;
+        put(picture, key);
+    }
+
+
+    void remove(AbstractPicture picture) {
+        Long key = keys.remove(picture);
+        if (key != null) {
+            order.remove(key);
+        }
+    }
+
+
+    /**
+     * Brings picture in front of all other pictures.
+     * @param picture
+     */
+    void moveToFront(AbstractPicture picture) {
+        Long key = keys.get(picture);
+        if (key != null && key < order.lastKey()) {
+            remove(picture);
+            add(picture);
+        }
+    }
+
+
+    boolean contains(AbstractPicture picture) {
+        return keys.containsKey(picture);
+    }
+
+
+    /**
+     * @param picture
+     * @return Key of picture, a picture with a higher key is drawn in front of a picture with a lower key.
+     */
+    long key(AbstractPicture picture) {
+        return keys.get(picture);
+    }
+
+
+    int size() {
+        return order.size();
+    }
+
+
+    /**
+     * @return Iterator over the pictures from back to front, not supporting removal.
+     */
+    @Override
+    public Iterator<AbstractPicture> iterator() {
+        return Collections.unmodifiableCollection(order.values()).iterator();
+    }
+
+
+    private void put(AbstractPicture picture, long key) {
+        keys.put(picture, key);
+        order.put(key, picture);
+    }
+
+
+    private void renumber() {
+        Collection<AbstractPicture> pictures = new ArrayList<>(order.values());
+        keys.clear();
+        order.clear();
+        long key = Long.MIN_VALUE / 2;
+        for (AbstractPicture picture : pictures) {
+            put(picture, key);
+            key += SPACING;
+        }
+    }
+
+
+    private final Map<AbstractPicture, Long> keys = new HashMap<>();
+    private final TreeMap<Long, AbstractPicture> order = new TreeMap<>();
+
+    private static final long SPACING = 1L << 20;
+
+}
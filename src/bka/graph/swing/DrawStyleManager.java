@@ -6,51 +6,58 @@ package bka.graph.swing;
 
 import bka.awt.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 public class DrawStyleManager {
 
 
+    public interface Listener {
+        /**
+         * @param changes styles set, by picture or picture class, on the thread that set them
+         */
+        void drawStylesChanged(Map<?, DrawStyle> changes);
+    }
+
+
      public static DrawStyleManager getInstance() {
-        if (instance == null) {
-            instance = new DrawStyleManager();
-        }
-        return instance;
+        return INSTANCE;
     }
 
 
-   public DrawStyle getDrawStyle(AbstractPicture picture) {
-        synchronized (styles) {
-            DrawStyle style = styles.get(picture);
-            Class cls = picture.getClass();
-            while (style == null && cls != null) {
-                style = styles.get(cls);
-                if (style == null) {
-                    cls = cls.getSuperclass();
-                }
-            }
+    /**
+     * Reads without locking, styles resolved for a picture class are cached until styles change.
+     * @param picture
+     * @return Style of picture or of its nearest class that has a style, null if none has.
+     */
+    public DrawStyle getDrawStyle(AbstractPicture picture) {
+        State current = state;
+        DrawStyle style = current.styles.get(picture);
+        if (style != null) {
             return style;
         }
+        Resolution resolution = current.resolutions.get(picture.getClass());
+        if (resolution == null) {
+            resolution = new Resolution(resolve(current.styles, picture.getClass()));
+            current.resolutions.put(picture.getClass(), resolution);
+        }
+        return resolution.style;
     }
 
 
     public void setDrawStyle(Class<? extends AbstractPicture> key, DrawStyle style) {
-        synchronized (styles) {
-            styles.put(key, style);
-        }
+        setDrawStyles(Collections.singletonMap(key, style));
     }
 
 
     public void setDrawStyle(AbstractPicture key, DrawStyle style) {
-        synchronized (styles) {
-            styles.put(key, style);
-        }
+        setDrawStyles(Collections.singletonMap(key, style));
     }
 
 
     public Map<Object, DrawStyle> getCustomizedDrawStyles() {
         Map<Object, DrawStyle> customizedDrawStyles = new HashMap<>();
-        for (Map.Entry<Object, DrawStyle> entry : styles.entrySet()) {
+        for (Map.Entry<Object, DrawStyle> entry : state.styles.entrySet()) {
             if (! (entry.getKey() instanceof Class)) {
                 customizedDrawStyles.put(entry.getKey(), entry.getValue());
             }
@@ -59,8 +66,53 @@ public class DrawStyleManager {
     }
 
 
-    public void setDrawStyles(Map<Object, DrawStyle> drawStyles) {
-        styles.putAll(drawStyles);
+    public void setDrawStyles(Map<?, DrawStyle> drawStyles) {
+        synchronized (lock) {
+            Map<Object, DrawStyle> styles = new HashMap<>(state.styles);
+            styles.putAll(drawStyles);
+            state = new State(styles);
+        }
+        for (Listener listener : listeners) {
+            listener.drawStylesChanged(drawStyles);
+        }
+    }
+
+
+    /**
+     * Sets styles of pictures loaded from a book, listeners are not notified since the styles are not changed.
+     * @param drawStyles
+     */
+    public void loadDrawStyles(Map<?, DrawStyle> drawStyles) {
+        synchronized (lock) {
+            Map<Object, DrawStyle> styles = new HashMap<>(state.styles);
+            styles.putAll(drawStyles);
+            state = new State(styles);
+        }
+    }
+
+
+    /**
+     * Removes styles of pictures unloaded from memory, listeners are not notified since the styles are not changed.
+     * @param keys
+     */
+    public void unloadDrawStyles(Collection<?> keys) {
+        synchronized (lock) {
+            Map<Object, DrawStyle> styles = new HashMap<>(state.styles);
+            for (Object key : keys) {
+                styles.remove(key);
+            }
+            state = new State(styles);
+        }
+    }
+
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
     }
 
 
@@ -68,9 +120,45 @@ public class DrawStyleManager {
     }
 
 
-    private final Map<Object, DrawStyle> styles = new HashMap<>();
+    private static DrawStyle resolve(Map<Object, DrawStyle> styles, Class cls) {
+        DrawStyle style = null;
+        while (style == null && cls != null) {
+            style = styles.get(cls);
+            cls = cls.getSuperclass();
+        }
+        return style;
+    }
+
+
+    /**
+     * Styles are never modified, a change of styles replaces the state with its resolutions.
+     */
+    private static class State {
+
+        State(Map<Object, DrawStyle> styles) {
+            this.styles = styles;
+        }
+
+        final Map<Object, DrawStyle> styles;
+        final Map<Class, Resolution> resolutions = new ConcurrentHashMap<>();
+    }
+
+
+    private static class Resolution {
+
+        Resolution(DrawStyle style) {
+            this.style = style;
+        }
+
+        final DrawStyle style;
+    }
+
+
+    private volatile State state = new State(Collections.emptyMap());
+    private final Collection<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
 
 
-    private static DrawStyleManager instance;
+    private static final DrawStyleManager INSTANCE = new DrawStyleManager();
 
 }
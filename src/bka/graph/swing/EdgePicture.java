@@ -251,6 +251,7 @@ public class EdgePicture extends AbstractPicture {
             xPoints[i] += deltaX;
             yPoints[i] += deltaY;
         }
+        clearShape();
     }
 
 
@@ -421,6 +422,7 @@ public class EdgePicture extends AbstractPicture {
             float x = left + (right - left) / 2.0f - (float) bounds.getCenterX();
             float y = top + (bottom - top) / 2.0f - (float) bounds.getCenterY();
             g2d.drawString(text, x, y);
+            includeTextExtent(new Rectangle2D.Double(x + bounds.getX(), y + bounds.getY(), bounds.getWidth(), bounds.getHeight()));
         }
     }
     
@@ -474,6 +476,38 @@ public class EdgePicture extends AbstractPicture {
         arraycopy(xOld, yOld, 0, 0, index);
         arraycopy(xOld, yOld, index + 1, index, count - 1 - index);
    }
+
+
+    /**
+     * Replaces points of this edge, in place when the number of points does not change.
+     * @param index of the first point to replace
+     * @param count number of points to replace
+     * @param points replacing points, x and y coordinates interleaved
+     * @return replaced points, x and y coordinates interleaved
+     */
+    final int[] replacePoints(int index, int count, int[] points) {
+        int[] replaced = new int[count * 2];
+        for (int i = 0; i < count; ++i) {
+            replaced[i * 2] = xPoints[index + i];
+            replaced[i * 2 + 1] = yPoints[index + i];
+        }
+        int replacingCount = points.length / 2;
+        if (replacingCount != count) {
+            int[] xOld = xPoints;
+            int[] yOld = yPoints;
+            int oldCount = getPointCount();
+            xPoints = new int[oldCount - count + replacingCount];
+            yPoints = new int[xPoints.length];
+            arraycopy(xOld, yOld, 0, 0, index);
+            arraycopy(xOld, yOld, index + count, index + replacingCount, oldCount - index - count);
+        }
+        for (int i = 0; i < replacingCount; ++i) {
+            xPoints[index + i] = points[i * 2];
+            yPoints[index + i] = points[i * 2 + 1];
+        }
+        clearShape();
+        return replaced;
+    }
    
    
     private void avoidTerminalDrag(Point point) {
@@ -122,7 +122,7 @@ public class GraphEditor extends bka.swing.FrameApplication {
                     DrawStyle newDrawStyle = new DrawStyle(drawStyle);
                     newDrawStyle.setColor(key, newColor);
                     DrawStyleManager.getInstance().setDrawStyle(picture, newDrawStyle);
-                    getSelectedDiagramComponent().clearHoverInfo();
+                    clearHoverInfo();
                 }
             }));
         }
@@ -133,7 +133,7 @@ public class GraphEditor extends bka.swing.FrameApplication {
         DiagramComponent diagramComponent = getDiagramComponent(picture);
         diagramComponent.setHighlighted(picture, drawStyle);
         if (indexOf(diagramComponent) == diagramTabbedPane.getSelectedIndex()) {
-            diagramComponent.repaint();
+            diagramComponent.repaintDamage();
         }
     }
     
@@ -141,16 +141,16 @@ public class GraphEditor extends bka.swing.FrameApplication {
     public final void resetHighlighted(AbstractPicture picture, DrawStyle drawStyle) {
         DiagramComponent diagramComponent = getDiagramComponent(picture);
         if (diagramComponent.resetHighlighted(picture, drawStyle) && indexOf(diagramComponent) == diagramTabbedPane.getSelectedIndex()) {
-            diagramComponent.repaint();
+            diagramComponent.repaintDamage();
         }
     }
 
 
     public final void resetHighlighted(DrawStyle drawStyle) {
         for (int i = 0; i <  diagramTabbedPane.getTabCount(); ++i) {
-            DiagramComponent diagramComponent = getDiagramComponent(i);
-            if (diagramComponent.resetHighlighted(drawStyle) && i == diagramTabbedPane.getSelectedIndex()) {
-                diagramComponent.repaint();
+            DiagramComponent diagramComponent = getDiagramPane(i).diagramComponent; // Pages without component have no highlights
+            if (diagramComponent != null && diagramComponent.resetHighlighted(drawStyle) && i == diagramTabbedPane.getSelectedIndex()) {
+                diagramComponent.repaintDamage();
             }
         }
     }
@@ -165,6 +165,31 @@ public class GraphEditor extends bka.swing.FrameApplication {
     }
     
 
+    /**
+     * Reads the draw history stored for page, before page is modified.
+     */
+    void restoreHistory(DiagramPage page, DrawHistory drawHistory) {
+        if (historyFile != null) {
+            historyFile.restore(page, drawHistory);
+        }
+    }
+
+
+    /**
+     * Journals the pictures changed by the latest change of the draw history of diagramComponent.
+     * Changes the journal cannot hold are saved by the next compaction.
+     */
+    void picturesMutated(DiagramComponent diagramComponent) {
+        Collection<AbstractPicture> pictures = diagramComponent.takeMutatedPictures();
+        if (! pictures.isEmpty()) {
+            book.pageModified(diagramComponent.getPage());
+            if (journal != null && ! journal.record(diagramComponent.getPage(), pictures)) {
+                scheduleCompaction();
+            }
+        }
+    }
+
+
     void vertexPictureAdded(DiagramComponent diagramComponent, VertexPicture picture) {
         vertexTreePanel.vertexAdded(picture, getSelectedDiagramComponent());
         if (listener != null) {
@@ -182,6 +207,8 @@ public class GraphEditor extends bka.swing.FrameApplication {
     
     
     void vertexPictureModified(VertexPicture picture) {
+        book.modelModified(picture);
+        scheduleCompaction();
         vertexTreePanel.vertexModified(picture);
         TreePanelDelegate delegate = getTreePanelDelegate();
         if (delegate != null) {
@@ -213,6 +240,8 @@ public class GraphEditor extends bka.swing.FrameApplication {
 
 
     void edgePictureModified(EdgePicture picture) {
+        book.modelModified(picture);
+        scheduleCompaction();
         if (listener != null) {
             listener.edgePictureModified(picture);
         }
@@ -279,19 +308,22 @@ public class GraphEditor extends bka.swing.FrameApplication {
 
     @Override
     protected void opened() {
+        DrawStyleManager.getInstance().addListener(drawStyleListener);
         Integer deviderLocation = getIntProperty(SPLIT_DIVIDER_PROPERTY);
         if (deviderLocation != null) {
             diagramSplitPane.setDividerLocation(deviderLocation);
         }
-        book = new Book(getPersistenceDelegates());
+        book = createBook();
         Object path = getProperty(DIAGRAM_FILE_PROPERTY);
         if (path != null) {
             diagramFile = new File(path.toString());
-            load();
         }
         if (diagramFile != null && diagramFile.isDirectory()) {
             createEmptyBook();
         }
+        else if (diagramFile != null) {
+            load();
+        }
         else {
             updateFileStatus();
         }
@@ -301,15 +333,22 @@ public class GraphEditor extends bka.swing.FrameApplication {
     @Override
     protected void closing() {
         setProperty(SPLIT_DIVIDER_PROPERTY, String.valueOf(diagramSplitPane.getDividerLocation()));
+        storeHistories();
+        closeJournal();
+        book.close();
+        DrawStyleManager.getInstance().removeListener(drawStyleListener);
     }
 
     
     final protected void setHighlighted(Vertex vertex, DrawStyle drawStyle) {
         int count = diagramTabbedPane.getTabCount();
         for (int i = 0; i < count; ++i) {
-            boolean vertexHighlighted = getDiagramComponent(i).setHighlighted(vertex, drawStyle);
-            if (vertexHighlighted && i == diagramTabbedPane.getSelectedIndex()) {
-                getDiagramComponent(i).repaint();
+            DiagramPane pane = getDiagramPane(i);
+            if (pane.diagramComponent != null || pane.page.isLoaded() && containsVertex(pane.page, vertex)) { // Pages not loaded are not highlighted
+                boolean vertexHighlighted = pane.getDiagramComponent().setHighlighted(vertex, drawStyle);
+                if (vertexHighlighted && i == diagramTabbedPane.getSelectedIndex()) {
+                    pane.diagramComponent.repaintDamage();
+                }
             }
         }
     }
@@ -319,12 +358,9 @@ public class GraphEditor extends bka.swing.FrameApplication {
         int count = diagramTabbedPane.getTabCount();
         int selected = diagramTabbedPane.getSelectedIndex();
         for (int i = 0; i <  count; ++i) {
-            DiagramComponent diagramComponent = getDiagramComponent((selected + i) % count);
-            if (diagramComponent != null) {
-                for (VertexPicture picture : diagramComponent.getVertexPictures()) {
-                    if (vertex == picture.getVertex()) {
-                        return picture;
-                    }
+            for (VertexPicture picture : getVertexPictures(getDiagramPane((selected + i) % count).page)) {
+                if (vertex == picture.getVertex()) {
+                    return picture;
                 }
             }
         }
@@ -365,15 +401,30 @@ public class GraphEditor extends bka.swing.FrameApplication {
     protected Map<Class, java.beans.PersistenceDelegate> getPersistenceDelegates() {
         return null;
     }
+
+
+    /**
+     * Custom picture classes need a binary persistence delegate to be saved in binary format.
+     * @return Delegates by picture class
+     */
+    protected Map<Class, BinaryPersistenceDelegate> getBinaryPersistenceDelegates() {
+        return null;
+    }
     
 
     protected void diagramRepaint() {
-        getSelectedDiagramComponent().repaint();
+        DiagramComponent diagramComponent = getSelectedDiagramComponent();
+        if (diagramComponent != null) {
+            diagramComponent.repaintAll();
+        }
     }
     
     
     protected void clearHoverInfo() {
-        getSelectedDiagramComponent().clearHoverInfo();
+        DiagramComponent diagramComponent = getSelectedDiagramComponent();
+        if (diagramComponent != null) {
+            diagramComponent.clearHoverInfo();
+        }
     }
     
     
@@ -381,7 +432,7 @@ public class GraphEditor extends bka.swing.FrameApplication {
         Collection<VertexPicture> pictures = new HashSet<>();
         int count = diagramTabbedPane.getTabCount();
         for (int i = 0; i < count; ++i) {
-            pictures.addAll(getDiagramComponent(i).getVertexPictures());
+            pictures.addAll(getVertexPictures(getDiagramPane(i).page));
         }
         return pictures;
     }
@@ -397,13 +448,137 @@ public class GraphEditor extends bka.swing.FrameApplication {
     }
 
 
-    ArrayList<DiagramComponent> getDiagramComponents() {
-        ArrayList<DiagramComponent> components = new ArrayList<>();
+    /**
+     * @return Number of bytes each diagram may use for caching rendered tiles.
+     */
+    long getSceneCacheBudget() {
+        Integer megabytes = getIntProperty(SCENE_CACHE_BUDGET_PROPERTY);
+        return ((megabytes != null) ? megabytes : DEFAULT_SCENE_CACHE_BUDGET) * 1024L * 1024L;
+    }
+
+
+    /**
+     * Off unless enabled, custom pictures must then be safe to paint by several threads at once.
+     * @return Whether diagrams render invalid tiles on multiple threads.
+     */
+    boolean isParallelRendering() {
+        Object parallel = getProperty(PARALLEL_RENDERING_PROPERTY);
+        return parallel != null && Boolean.parseBoolean(parallel.toString());
+    }
+
+
+    /**
+     * @return Whether draw histories are stored next to the book file when the book is closed.
+     */
+    boolean isHistoryPersistent() {
+        Object persistent = getProperty(PERSISTENT_HISTORY_PROPERTY);
+        return persistent != null && Boolean.parseBoolean(persistent.toString());
+    }
+
+
+    /**
+     * @return Number of pages that stay loaded after they are selected, other pages are released from memory
+     * when they are not modified.
+     */
+    int getLoadedPageLimit() {
+        Integer limit = getIntProperty(LOADED_PAGE_LIMIT_PROPERTY);
+        return (limit != null) ? limit : DEFAULT_LOADED_PAGE_LIMIT;
+    }
+
+
+    /**
+     * @return Maximum number of mutations kept in the draw history of a diagram.
+     */
+    int getHistoryLimit() {
+        Integer limit = getIntProperty(HISTORY_LIMIT_PROPERTY);
+        return (limit != null && limit > 0) ? limit : DEFAULT_HISTORY_LIMIT;
+    }
+
+
+    /**
+     * @return Estimated number of bytes the draw history of a diagram may keep.
+     */
+    long getHistoryBudget() {
+        Integer megabytes = getIntProperty(HISTORY_BUDGET_PROPERTY);
+        return ((megabytes != null) ? megabytes : DEFAULT_HISTORY_BUDGET) * 1024L * 1024L;
+    }
+
+
+    /**
+     * @return Milliseconds within which consecutive drags of the same pictures are undone as one.
+     */
+    long getHistoryCoalesceWindow() {
+        Integer milliseconds = getIntProperty(HISTORY_COALESCE_WINDOW_PROPERTY);
+        return (milliseconds != null) ? milliseconds : DEFAULT_HISTORY_COALESCE_WINDOW;
+    }
+
+
+    /**
+     * @return Pages in tab order
+     */
+    ArrayList<DiagramPage> getDiagramPages() {
+        ArrayList<DiagramPage> pages = new ArrayList<>();
+        int count = diagramTabbedPane.getTabCount();
+        for (int i = 0; i < count; ++i) {
+            pages.add(getDiagramPane(i).page);
+        }
+        return pages;
+    }
+
+
+    /**
+     * Builds the diagram component of page if it is not built yet.
+     * @param page
+     * @return Diagram component showing page, null if no tab shows page or page cannot be loaded.
+     */
+    DiagramComponent getDiagramComponent(DiagramPage page) {
         int count = diagramTabbedPane.getTabCount();
         for (int i = 0; i < count; ++i) {
-            components.add(getDiagramComponent(i));
+            DiagramPane pane = getDiagramPane(i);
+            if (pane.page == page) {
+                return pane.getDiagramComponent();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @param page
+     * @return Vertex pictures of page in drawing order, without building its diagram component.
+     */
+    ArrayList<VertexPicture> getVertexPictures(DiagramPage page) {
+        DiagramPane pane = findDiagramPane(page);
+        if (pane != null && pane.diagramComponent != null) {
+            return pane.diagramComponent.getVertexPictures();
+        }
+        try {
+            return new ArrayList<>(page.getVertices());
+        }
+        catch (UncheckedIOException ex) {
+            pageLoadFailed(page, ex);
+            return new ArrayList<>();
+        }
+    }
+
+
+    /**
+     * @param page
+     * @param vertexPicture
+     * @return Container of vertexPicture on page, without building the diagram component of page.
+     */
+    VertexPicture findContainer(DiagramPage page, VertexPicture vertexPicture) {
+        DiagramPane pane = findDiagramPane(page);
+        if (pane != null && pane.diagramComponent != null) {
+            return pane.diagramComponent.findContainer(vertexPicture);
+        }
+        try {
+            return DiagramComponent.findContainer(new ArrayList<>(page.getVertices()), vertexPicture);
+        }
+        catch (UncheckedIOException ex) {
+            pageLoadFailed(page, ex);
+            return null;
         }
-        return components;
     }
     
     
@@ -588,6 +763,7 @@ public class GraphEditor extends bka.swing.FrameApplication {
         renameDiagram();
         book.addPage(page);
         book.setPageIndex(index);
+        scheduleCompaction();
     }//GEN-LAST:event_newDiagramMenuItem_actionPerformed
 
     
@@ -617,27 +793,30 @@ public class GraphEditor extends bka.swing.FrameApplication {
     
     private void deleteDiagramMenuItem_actionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_deleteDiagramMenuItem_actionPerformed
         int index = diagramTabbedPane.getSelectedIndex();
-        DiagramComponent diagramComponent = getDiagramComponent(index);
+        DiagramPage page = getDiagramPane(index).page;
         diagramTabbedPane.remove(index);
-        book.removePage(diagramComponent.getPage());
+        book.removePage(page);
         vertexTreePanel.rebuild();        
+        scheduleCompaction();
     }//GEN-LAST:event_deleteDiagramMenuItem_actionPerformed
 
     
     private void saveAsButton_actionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveAsButton_actionPerformed
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(XML_FILE_FILTER);
-        File file = (diagramFile != null && ! diagramFile.isDirectory()) ? diagramFile : new File(diagramFile, "." + XML_EXTENSION);
+        fileChooser.addChoosableFileFilter(XML_FILE_FILTER);
+        fileChooser.setFileFilter(BOOK_FILE_FILTER);
+        File file = (diagramFile != null && ! diagramFile.isDirectory()) ? diagramFile : new File(diagramFile, "." + BOOK_EXTENSION);
         fileChooser.setSelectedFile(file);
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             diagramFile = fileChooser.getSelectedFile();
             String path = diagramFile.getPath();
-            String extension = "." + XML_EXTENSION;
+            String extension = "." + ((fileChooser.getFileFilter() == XML_FILE_FILTER) ? XML_EXTENSION : BOOK_EXTENSION);
             if (! path.toLowerCase().endsWith(extension)) {
                 path += extension;
                 diagramFile = new File(path);
             }
             setProperty(DIAGRAM_FILE_PROPERTY, path);
+            closeJournal();
             save();
             updateFileStatus();
         }
@@ -646,14 +825,14 @@ public class GraphEditor extends bka.swing.FrameApplication {
     
     private void loadButton_actionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_loadButton_actionPerformed
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(XML_FILE_FILTER);
+        fileChooser.setFileFilter(GRAPH_FILE_FILTER);
         fileChooser.setSelectedFile(diagramFile);
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            storeHistories();
             diagramFile = fileChooser.getSelectedFile();
             setProperty(DIAGRAM_FILE_PROPERTY, diagramFile.getPath());
             diagramTabbedPane.removeAll();
             load();
-            updateFileStatus();
         }
     }//GEN-LAST:event_loadButton_actionPerformed
 
@@ -664,9 +843,9 @@ public class GraphEditor extends bka.swing.FrameApplication {
 
 
     private void updateTabTitle(int tabIndex) {
-        DiagramComponent diagramComponent = getDiagramComponent(tabIndex);
-        diagramTabbedPane.setTitleAt(tabIndex, diagramComponent.getTitle());
-        vertexTreePanel.diagramModified(diagramComponent);
+        DiagramPage page = getDiagramPane(tabIndex).page;
+        diagramTabbedPane.setTitleAt(tabIndex, page.getTitle());
+        vertexTreePanel.diagramModified(page);
     }
     
     
@@ -676,9 +855,14 @@ public class GraphEditor extends bka.swing.FrameApplication {
         bounds.width = Math.max(EDIT_MIN_WIDTH, bounds.width);
         bounds.height = Math.max(EDIT_MIN_HEIGHT, bounds.height);
         DiagramComponent diagramComponent = getDiagramComponent(tabIndex);
+        if (diagramComponent == null) {
+            return;
+        }
         PopupControl.show(diagramTabbedPane, new TextFieldPopupModel(bounds, diagramComponent.getTitle(), (newTitle) -> {
             diagramComponent.setTitle(newTitle);
             updateTabTitle(tabIndex);
+            book.pageModified(diagramComponent.getPage());
+            scheduleCompaction();
         }));
     }
     
@@ -693,8 +877,11 @@ public class GraphEditor extends bka.swing.FrameApplication {
 
     
     private void createEmptyBook() {
+        storeHistories();
         diagramTabbedPane.removeAll();
-        book = new Book(getPersistenceDelegates());
+        closeJournal();
+        closeBook();
+        book = createBook();
         DiagramPage page = DiagramPage.createEmpty();
         book.addPage(page);
         addDiagramTab(new DiagramComponent(this, page));
@@ -703,50 +890,295 @@ public class GraphEditor extends bka.swing.FrameApplication {
     }
 
 
+    /**
+     * Loads the book from diagramFile on a background thread.
+     * A tab is added as soon as its page is loaded, the first page can be used while others are loading.
+     * Pages of paged books are opened, their content is loaded when it is accessed.
+     * If the journal of the book holds changes that were not compacted, the changes are applied before the
+     * first tab is added.
+     */
     private void load() {
-        try {
-            book.load(diagramFile);
-            ArrayList<DiagramPage> pages = book.getDiagramPages();
-            for (DiagramPage page : pages) {
-                DiagramComponent diagramComponent = new DiagramComponent(this, page);
-                for (VertexPicture vertexPicture : diagramComponent.getVertexPictures()) {
-                    vertexPicture.initAttachmentPoints();
+        Book loadingBook = createBook();
+        File file = diagramFile;
+        closeJournal();
+        closeBook();
+        book = loadingBook;
+        BookJournal loadingJournal = createJournal(file);
+        journal = loadingJournal;
+        HistoryFile loadingHistory = (isHistoryPersistent()) ? new HistoryFile(file, getPersistenceDelegates(), getBinaryPersistenceDelegates()) : null;
+        historyFile = loadingHistory;
+        saveButton.setEnabled(false);
+        Thread loader = new Thread(() -> {
+            try {
+                if (loadingJournal.needsRecovery()) {
+                    ArrayList<DiagramPage> pages = new ArrayList<>();
+                    loadingBook.open(file, pages::add);
+                    int count = loadingJournal.recover(pages);
+                    Logger.getLogger(GraphEditor.class.getName()).log(Level.INFO, "Recovered {0} journaled changes of {1}", new Object[] { count, file });
+                    for (DiagramPage page : pages) {
+                        EventQueue.invokeLater(() -> pageLoaded(loadingBook, page));
+                    }
                 }
-                addDiagramTab(diagramComponent);
+                else {
+                    if (loadingHistory != null) {
+                        loadingHistory.open(); // Histories of a recovered book do not apply
+                    }
+                    loadingBook.open(file, page -> {
+                        loadingJournal.pageLoaded(page);
+                        EventQueue.invokeLater(() -> pageLoaded(loadingBook, page));
+                    });
+                }
+                EventQueue.invokeLater(() -> bookLoaded(loadingBook));
+            }
+            catch (IOException | RuntimeException | Error ex) {
+                EventQueue.invokeLater(() -> loadFailed(loadingBook, file, ex));
             }
+        }, "Book loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+
+    /**
+     * The diagram component of page is built when its tab is selected, the vertex tree is rebuilt when the book is loaded.
+     */
+    private void pageLoaded(Book loadingBook, DiagramPage page) {
+        if (book == loadingBook) {
+            book.addPage(page);
+            if (historyFile != null) {
+                historyFile.pageOpened(page, book.getDiagramPages().size() - 1);
+            }
+            diagramTabbedPane.addTab(page.getTitle(), new DiagramPane(page));
+        }
+    }
+
+
+    private void bookLoaded(Book loadingBook) {
+        if (book == loadingBook) {
+            journal.pagesLoaded();
             if (book.getPageIndex() < diagramTabbedPane.getTabCount()) {
                 diagramTabbedPane.setSelectedIndex(book.getPageIndex());
             }
             vertexTreePanel.rebuild();
+            updateFileStatus();
             OnLoadDelegate onLoadDelegate = getOnLoadDelegate();
             if (onLoadDelegate != null) {
                 onLoadDelegate.onLoad();
             }
         }
-        catch (FileNotFoundException ex) {
-            Logger.getLogger(GraphEditor.class.getName()).log(Level.INFO, diagramFile.toString(), ex);
-            JOptionPane.showMessageDialog(this, "'" + diagramFile.getPath() + "' not found", "File not found", JOptionPane.ERROR_MESSAGE);
-            resetDiagramFile();
-        }
-        catch (RuntimeException | Error e) {
-            Logger.getLogger(GraphEditor.class.getName()).log(Level.SEVERE, diagramFile.toString(), e);
-            JOptionPane.showMessageDialog(this, "Error loading '" + diagramFile.getPath() + "'", "File error", JOptionPane.ERROR_MESSAGE);
+    }
+
+
+    /**
+     * Reports a page of an opened book that cannot be loaded, the page stays in the book and loading it is
+     * tried again when it is accessed next.
+     */
+    private void pageLoadFailed(DiagramPage page, UncheckedIOException cause) {
+        Logger.getLogger(GraphEditor.class.getName()).log(Level.SEVERE, page.getTitle(), cause);
+        JOptionPane.showMessageDialog(this, "Error loading page '" + page.getTitle() + "'", "File error", JOptionPane.ERROR_MESSAGE);
+    }
+
+
+    private void loadFailed(Book loadingBook, File file, Throwable cause) {
+        if (book == loadingBook) {
+            if (cause instanceof FileNotFoundException) {
+                Logger.getLogger(GraphEditor.class.getName()).log(Level.INFO, file.toString(), cause);
+                JOptionPane.showMessageDialog(this, "'" + file.getPath() + "' not found", "File not found", JOptionPane.ERROR_MESSAGE);
+            }
+            else {
+                Logger.getLogger(GraphEditor.class.getName()).log(Level.SEVERE, file.toString(), cause);
+                JOptionPane.showMessageDialog(this, "Error loading '" + file.getPath() + "'", "File error", JOptionPane.ERROR_MESSAGE);
+            }
+            closeJournal();
             resetDiagramFile();
+            if (diagramTabbedPane.getTabCount() == 0) {
+                createEmptyBook();
+            }
+            else {
+                updateFileStatus();
+            }
         }
     }
 
         
+    /**
+     * Compacts the journal of the book, the book file is written in the background.
+     */
     private void save() {
-        try {
-            book.save(diagramFile);
+        for (int index = 0; index < diagramTabbedPane.getTabCount(); ++index) {
+            DiagramComponent diagramComponent = getDiagramPane(index).diagramComponent;
+            if (diagramComponent != null) {
+                picturesMutated(diagramComponent); // Pictures changed outside draw history
+            }
+        }
+        if (journal == null) {
+            journal = createJournal(diagramFile);
+            journal.pagesLoaded();
+        }
+        if (isHistoryPersistent() && (historyFile == null || ! historyFile.belongsTo(diagramFile))) {
+            historyFile = new HistoryFile(diagramFile, getPersistenceDelegates(), getBinaryPersistenceDelegates());
+        }
+        compactionTimer.stop();
+        compactJournal(0);
+    }
+
+
+    /**
+     * Saves the book and stores the draw histories of its pages next to the book file, so drawing can be undone
+     * when the book is loaded again. Histories are not stored if the book could not be saved.
+     */
+    private void storeHistories() {
+        if (historyFile != null && journal != null) {
+            save();
+            closeJournal();
+            if (! journalFailed) {
+                try {
+                    historyFile.write(book.getDiagramPages(), page -> {
+                        DiagramPane pane = findDiagramPane(page);
+                        return (pane != null && pane.diagramComponent != null) ? pane.diagramComponent.getDrawHistory() : null;
+                    });
+                }
+                catch (IOException ex) {
+                    Logger.getLogger(GraphEditor.class.getName()).log(Level.WARNING, "Draw histories not stored", ex);
+                }
+            }
+        }
+        historyFile = null;
+    }
+
+
+    private Book createBook() {
+        Book newBook = new Book(getPersistenceDelegates(), getBinaryPersistenceDelegates());
+        newBook.addPageListener(pageListener);
+        return newBook;
+    }
+
+
+    /**
+     * Closes the file of the book, its journal must be closed.
+     */
+    private void closeBook() {
+        book.close();
+        recentPages.clear();
+    }
+
+
+    /**
+     * Releases the pages that are loaded but not modified, except the most recently selected pages and pages
+     * with draw history, so browsing a large book does not keep all of its pages in memory.
+     */
+    private void releasePages() {
+        int count = diagramTabbedPane.getTabCount();
+        for (int index = 0; index < count; ++index) {
+            DiagramPane pane = getDiagramPane(index);
+            if (pane.page.isLoaded() && ! recentPages.contains(pane.page) && pane.isReleasable()) {
+                if (pane.diagramComponent != null) {
+                    picturesMutated(pane.diagramComponent); // Modified pages are not released
+                }
+                if (book.release(pane.page)) {
+                    pane.release();
+                    vertexTreePanel.diagramReleased(pane.page);
+                }
+            }
+        }
+    }
+
+
+    private void pageSelected(DiagramPage page) {
+        recentPages.remove(page);
+        recentPages.add(page);
+        Iterator<DiagramPage> iterator = recentPages.iterator();
+        while (recentPages.size() > getLoadedPageLimit()) {
+            iterator.next();
+            iterator.remove();
+        }
+        releasePages();
+    }
+
+
+    private BookJournal createJournal(File file) {
+        BookJournal bookJournal = new BookJournal(book, file);
+        journalFailed = false;
+        bookJournal.setFailureHandler(exception -> {
+            journalFailed = true;
+            EventQueue.invokeLater(() -> saveFailed(file, exception));
+        });
+        return bookJournal;
+    }
+
+
+    /**
+     * Waits until the journal has written pending changes.
+     */
+    private void closeJournal() {
+        compactionTimer.stop();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+
+    /**
+     * Changes that the journal cannot record are saved by compaction, a burst of changes is compacted once.
+     */
+    private void scheduleCompaction() {
+        if (journal != null) {
+            compactionTimer.restart();
+        }
+    }
+
+
+    private void compact() {
+        if (journal != null) {
+            compactJournal(0);
+        }
+    }
+
+
+    /**
+     * Compacts the journal holding the locks of the diagram components from tab on, so the pages they show are
+     * copied for saving in a consistent state. The journal encodes the copies on its own thread.
+     */
+    private void compactJournal(int tab) {
+        if (tab == diagramTabbedPane.getTabCount()) {
+            journal.compact();
+            return;
+        }
+        DiagramComponent diagramComponent = getDiagramPane(tab).diagramComponent;
+        if (diagramComponent != null) {
+            diagramComponent.runLocked(() -> compactJournal(tab + 1));
+        }
+        else {
+            compactJournal(tab + 1);
+        }
+    }
+
+
+    /**
+     * Customized styles of pictures in the book are saved, styles applied while loading are not changes.
+     */
+    private void drawStylesChanged(Map<?, DrawStyle> changes) {
+        for (Object key : changes.keySet()) {
+            if (key instanceof AbstractPicture) {
+                for (DiagramPage page : book.getDiagramPages()) {
+                    if (page.isLoaded() && page.contains((AbstractPicture) key)) {
+                        book.stylesModified();
+                        scheduleCompaction();
+                        return;
+                    }
+                }
+            }
         }
-        catch (FileNotFoundException ex) {
-            Logger.getLogger(GraphEditor.class.getName()).log(Level.SEVERE, diagramFile.toString(), ex);
-            JOptionPane.showMessageDialog(this, "Could not save '" + diagramFile.getPath() + "'", "File error", JOptionPane.ERROR_MESSAGE);
+    }
+
+
+    private void saveFailed(File file, Exception exception) {
+        if (exception instanceof FileNotFoundException) {
+            JOptionPane.showMessageDialog(this, "Could not save '" + file.getPath() + "'", "File error", JOptionPane.ERROR_MESSAGE);
         }
-        catch (RuntimeException | Error e) {
-            Logger.getLogger(GraphEditor.class.getName()).log(Level.SEVERE, diagramFile.toString(), e);
-            JOptionPane.showMessageDialog(this, "Error saving '" + diagramFile.getPath() + "'", "File error", JOptionPane.ERROR_MESSAGE);
+        else {
+            JOptionPane.showMessageDialog(this, "Error saving '" + file.getPath() + "'", "File error", JOptionPane.ERROR_MESSAGE);
         }
     }
     
@@ -770,10 +1202,17 @@ public class GraphEditor extends bka.swing.FrameApplication {
     }
 
 
+    private javax.swing.Timer createCompactionTimer() {
+        javax.swing.Timer timer = new javax.swing.Timer(COMPACTION_DELAY, evt -> compact());
+        timer.setRepeats(false);
+        return timer;
+    }
+
+
     private int indexOf(DiagramComponent diagramComponent) {
         int count = diagramTabbedPane.getTabCount();
         for (int index = 0; index < count; ++index) {
-            if (diagramComponent == getDiagramComponent(index)) {
+            if (diagramComponent == getDiagramPane(index).diagramComponent) {
                 return index;
             }
         }
@@ -790,8 +1229,7 @@ public class GraphEditor extends bka.swing.FrameApplication {
         if (index < 0) {
             return null;
         }
-        JScrollPane pane = (JScrollPane) diagramTabbedPane.getComponentAt(index);
-        return getDiagramComponent(pane);
+        return getDiagramPane(index).getDiagramComponent();
     }
     
     
@@ -799,34 +1237,109 @@ public class GraphEditor extends bka.swing.FrameApplication {
         Objects.requireNonNull(picture);
         int count = diagramTabbedPane.getTabCount();
         for (int index = 0; index < count; ++index) {
-            DiagramComponent diagramComponent = getDiagramComponent(index);
-            if (diagramComponent.contains(picture)) {
-                return diagramComponent;
+            DiagramPane pane = getDiagramPane(index);
+            if ((pane.diagramComponent != null) ? pane.diagramComponent.contains(picture) : pane.page.isLoaded() && containsPicture(pane.page, picture)) {
+                return pane.getDiagramComponent();
             }
         }
         throw new IllegalArgumentException("No such picture: " + picture.toString());
     }
-    
-    
-    private DiagramComponent getDiagramComponent(JScrollPane pane) {
-        return (DiagramComponent) pane.getViewport().getComponent(0);
+
+
+    private DiagramPane getDiagramPane(int index) {
+        return (DiagramPane) diagramTabbedPane.getComponentAt(index);
+    }
+
+
+    private DiagramPane findDiagramPane(DiagramPage page) {
+        int count = diagramTabbedPane.getTabCount();
+        for (int index = 0; index < count; ++index) {
+            DiagramPane pane = getDiagramPane(index);
+            if (pane.page == page) {
+                return pane;
+            }
+        }
+        return null;
     }
     
     
     private void addDiagramTab(DiagramComponent diagramComponent) {
-        diagramTabbedPane.addTab(diagramComponent.getTitle(), createDiagramPane(diagramComponent));
+        diagramTabbedPane.addTab(diagramComponent.getTitle(), new DiagramPane(diagramComponent));
         vertexTreePanel.rebuild();
     }
     
     
     private void addDiagramTab(DiagramComponent diagramComponent, int index) {
-        diagramTabbedPane.add(createDiagramPane(diagramComponent), index);
+        diagramTabbedPane.add(new DiagramPane(diagramComponent), index);
         vertexTreePanel.rebuild();
     }
-    
-    
-    private JScrollPane createDiagramPane(DiagramComponent diagramComponent) {
-        return new JScrollPane(diagramComponent);
+
+
+    private static boolean containsPicture(DiagramPage page, AbstractPicture picture) {
+        return (picture instanceof VertexPicture) ? page.getVertices().contains(picture) : page.getEdges().contains(picture);
+    }
+
+
+    private static boolean containsVertex(DiagramPage page, Vertex vertex) {
+        for (VertexPicture picture : page.getVertices()) {
+            if (picture.getVertex() == vertex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Tab content of a page. The diagram component of the page is built when it is needed for the first time,
+     * normally when its tab is selected.
+     */
+    private class DiagramPane extends JScrollPane {
+
+        DiagramPane(DiagramPage page) {
+            this.page = page;
+        }
+
+        DiagramPane(DiagramComponent diagramComponent) {
+            super(diagramComponent);
+            page = diagramComponent.getPage();
+            this.diagramComponent = diagramComponent;
+        }
+
+        /**
+         * @return Diagram component of page, null if page cannot be loaded
+         */
+        DiagramComponent getDiagramComponent() {
+            if (diagramComponent == null) {
+                try {
+                    diagramComponent = new DiagramComponent(GraphEditor.this, page);
+                }
+                catch (UncheckedIOException ex) {
+                    pageLoadFailed(page, ex);
+                    return null;
+                }
+                for (VertexPicture vertexPicture : diagramComponent.getVertexPictures()) {
+                    vertexPicture.initAttachmentPoints();
+                }
+                setViewportView(diagramComponent);
+            }
+            return diagramComponent;
+        }
+
+        /**
+         * @return true if dropping the diagram component loses no draw history
+         */
+        boolean isReleasable() {
+            return diagramComponent == null || diagramComponent.getDrawHistory().getMutattions().isEmpty();
+        }
+
+        void release() {
+            diagramComponent = null;
+            setViewportView(null);
+        }
+
+        final DiagramPage page;
+        DiagramComponent diagramComponent;
     }
 
 
@@ -836,8 +1349,9 @@ public class GraphEditor extends bka.swing.FrameApplication {
         public void stateChanged(ChangeEvent evt) {
             DiagramComponent diagramComponent = getDiagramComponent(diagramTabbedPane.getSelectedIndex());
             if (diagramComponent != null) {
-                historyPanel.setDrawHistory(diagramComponent.getDrawHistory());
+                historyPanel.setDiagramComponent(diagramComponent);
                 diagramComponent.requestFocus();
+                pageSelected(diagramComponent.getPage());
             }
         }
 
@@ -896,14 +1410,49 @@ public class GraphEditor extends bka.swing.FrameApplication {
 
 
     private File diagramFile;
+    private BookJournal journal;
+    private volatile boolean journalFailed;
+    private HistoryFile historyFile;
+    private final javax.swing.Timer compactionTimer = createCompactionTimer();
+    private final DrawStyleManager.Listener drawStyleListener = changes -> EventQueue.invokeLater(() -> drawStylesChanged(changes));
+    private final Set<DiagramPage> recentPages = new LinkedHashSet<>(); // Most recently selected last
+
+    private final Book.PageListener pageListener = new Book.PageListener() {
+
+        @Override
+        public void pageLoaded(DiagramPage page) {
+            EventQueue.invokeLater(() -> vertexTreePanel.diagramLoaded(page));
+        }
+
+        @Override
+        public void pageReleased(DiagramPage page) {
+        }
+
+    };
     
     private Listener listener;
     
     private static final String XML_EXTENSION = "xml";
     private static final javax.swing.filechooser.FileNameExtensionFilter XML_FILE_FILTER = new javax.swing.filechooser.FileNameExtensionFilter("XML Graphs", XML_EXTENSION);
+    private static final String BOOK_EXTENSION = "graph";
+    private static final javax.swing.filechooser.FileNameExtensionFilter BOOK_FILE_FILTER = new javax.swing.filechooser.FileNameExtensionFilter("Binary Graphs", BOOK_EXTENSION);
+    private static final javax.swing.filechooser.FileNameExtensionFilter GRAPH_FILE_FILTER = new javax.swing.filechooser.FileNameExtensionFilter("Graphs", BOOK_EXTENSION, XML_EXTENSION);
 
     private static final String DIAGRAM_FILE_PROPERTY = "DiagramFile";
     private static final String SPLIT_DIVIDER_PROPERTY = "diagramSplitPane.dividerLocation";
+    private static final String SCENE_CACHE_BUDGET_PROPERTY = "SceneCacheBudget"; // Megabytes per diagram
+    private static final int DEFAULT_SCENE_CACHE_BUDGET = 64;
+    private static final String PARALLEL_RENDERING_PROPERTY = "ParallelRendering";
+    private static final String PERSISTENT_HISTORY_PROPERTY = "PersistentHistory";
+    private static final String LOADED_PAGE_LIMIT_PROPERTY = "LoadedPageLimit";
+    private static final int DEFAULT_LOADED_PAGE_LIMIT = 8;
+    private static final String HISTORY_LIMIT_PROPERTY = "HistoryLimit";
+    private static final int DEFAULT_HISTORY_LIMIT = 1000;
+    private static final String HISTORY_BUDGET_PROPERTY = "HistoryBudget"; // Megabytes per diagram
+    private static final int DEFAULT_HISTORY_BUDGET = 16;
+    private static final String HISTORY_COALESCE_WINDOW_PROPERTY = "HistoryCoalesceWindow"; // Milliseconds
+    private static final int DEFAULT_HISTORY_COALESCE_WINDOW = 1500;
+    private static final int COMPACTION_DELAY = 2000; // milliseconds
     
     private static final int EDIT_MIN_WIDTH = 50;
     private static final int EDIT_MIN_HEIGHT = 25;
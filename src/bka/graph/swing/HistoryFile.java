@@ -0,0 +1,498 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import bka.graph.*;
+import bka.graph.document.*;
+import java.awt.*;
+import java.beans.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.logging.*;
+
+
+/**
+ * Draw histories of the pages of a book, stored next to the book file so drawing can be undone in a later session.
+ * The histories belong to the book file as it was written when they were stored, histories stored for another
+ * version of the book file are ignored. The file starts with the offsets of the histories by page number,
+ * the history of a page is read when its diagram is built.
+ *
+ * Pictures on the page are referred to by their number in drawing order, vertex pictures before edge pictures.
+ * Pictures that the history refers to but that are not on the page, like deleted pictures, are defined in the
+ * history of the page with their state. Their vertices are referred to by a picture that shows them or stored in XML.
+ */
+class HistoryFile {
+
+
+    HistoryFile(File bookFile, Map<Class, PersistenceDelegate> persistenceDelegates, Map<Class, BinaryPersistenceDelegate> binaryPersistenceDelegates) {
+        this.bookFile = bookFile;
+        this.persistenceDelegates = (persistenceDelegates != null) ? persistenceDelegates : Collections.emptyMap();
+        this.binaryPersistenceDelegates = (binaryPersistenceDelegates != null) ? binaryPersistenceDelegates : Collections.emptyMap();
+        file = new File(bookFile.getPath() + SUFFIX);
+    }
+
+
+    boolean belongsTo(File bookFile) {
+        return this.bookFile.equals(bookFile);
+    }
+
+
+    /**
+     * Reads the offsets of the stored histories if they belong to the book file as it is.
+     */
+    void open() {
+        if (! file.isFile()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                Logger.getLogger(HistoryFile.class.getName()).log(Level.WARNING, "Unsupported draw history {0}", file);
+                return;
+            }
+            if (input.readLong() != bookFile.length() || input.readLong() != bookFile.lastModified()) {
+                return;
+            }
+            int pageCount = input.readInt();
+            long[] pageOffsets = new long[pageCount];
+            int[] pageLengths = new int[pageCount];
+            for (int i = 0; i < pageCount; ++i) {
+                pageOffsets[i] = input.readLong();
+                pageLengths[i] = input.readInt();
+            }
+            offsets = pageOffsets;
+            lengths = pageLengths;
+        }
+        catch (IOException | RuntimeException ex) {
+            Logger.getLogger(HistoryFile.class.getName()).log(Level.WARNING, file.toString(), ex);
+        }
+    }
+
+
+    /**
+     * Associates page with the history stored for its number, pages are handed over in book order when loaded.
+     * @param page
+     * @param pageNumber
+     */
+    void pageOpened(DiagramPage page, int pageNumber) {
+        if (offsets != null && pageNumber < offsets.length && lengths[pageNumber] > 0) {
+            sections.put(page, new Section(offsets[pageNumber], lengths[pageNumber]));
+        }
+    }
+
+
+    /**
+     * Reads the history stored for page into history, page must be as it was stored. A history that cannot be
+     * read is logged and left out.
+     * @param page
+     * @param history
+     */
+    void restore(DiagramPage page, DrawHistory history) {
+        Section section = sections.remove(page);
+        if (section != null) {
+            try {
+                new Reader(page, read(section)).read(history);
+            }
+            catch (IOException | RuntimeException ex) {
+                Logger.getLogger(HistoryFile.class.getName()).log(Level.WARNING, file.toString(), ex);
+            }
+        }
+    }
+
+
+    /**
+     * Stores the histories of pages, the book file must be written. Pages without history in memory keep the
+     * history stored for them.
+     * @param pages in book order
+     * @param histories history of a page, null if the page has no history in memory
+     * @throws IOException
+     */
+    void write(java.util.List<DiagramPage> pages, Function<DiagramPage, DrawHistory> histories) throws IOException {
+        byte[][] pageSections = new byte[pages.size()][];
+        for (int i = 0; i < pages.size(); ++i) {
+            DiagramPage page = pages.get(i);
+            DrawHistory history = histories.apply(page);
+            Section section = sections.get(page);
+            if (history != null && ! history.getMutattions().isEmpty()) {
+                try {
+                    pageSections[i] = new Writer(page).write(history);
+                }
+                catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(HistoryFile.class.getName()).log(Level.WARNING, "Draw history of " + page.getTitle() + " not stored", ex);
+                }
+            }
+            else if (history == null && section != null) {
+                pageSections[i] = read(section);
+            }
+        }
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(bookFile.length());
+            output.writeLong(bookFile.lastModified());
+            output.writeInt(pageSections.length);
+            long offset = HEADER_SIZE + (long) pageSections.length * (Long.BYTES + Integer.BYTES);
+            for (byte[] pageSection : pageSections) {
+                int length = (pageSection != null) ? pageSection.length : 0;
+                output.writeLong(offset);
+                output.writeInt(length);
+                offset += length;
+            }
+            for (byte[] pageSection : pageSections) {
+                if (pageSection != null) {
+                    output.write(pageSection);
+                }
+            }
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        sections.clear();
+        offsets = null;
+        lengths = null;
+    }
+
+
+    private byte[] read(Section section) throws IOException {
+        byte[] bytes = new byte[section.length];
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(section.offset);
+            input.readFully(bytes);
+        }
+        return bytes;
+    }
+
+
+    private boolean isWritable(AbstractPicture picture) {
+        return picture.getClass() == VertexPicture.class || picture.getClass() == EdgePicture.class || binaryPersistenceDelegates.containsKey(picture.getClass());
+    }
+
+
+    /**
+     * Section layout: the number of defined pictures, their definitions and the draw history.
+     */
+    private class Writer {
+
+        Writer(DiagramPage page) {
+            for (VertexPicture picture : page.getVertices()) {
+                number(picture);
+            }
+            for (EdgePicture picture : page.getEdges()) {
+                number(picture);
+            }
+        }
+
+        byte[] write(DrawHistory history) throws IOException {
+            Collection<AbstractPicture> pictures = history.getPictures();
+            Collection<VertexPicture> vertexPictures = new LinkedHashSet<>();
+            Collection<EdgePicture> edgePictures = new LinkedHashSet<>();
+            for (AbstractPicture picture : pictures) {
+                if (! numbers.containsKey(picture) && isWritable(picture)) {
+                    if (picture instanceof VertexPicture) {
+                        vertexPictures.add((VertexPicture) picture);
+                    }
+                    else {
+                        EdgePicture edgePicture = (EdgePicture) picture;
+                        edgePictures.add(edgePicture);
+                        addEnd(vertexPictures, edgePicture.getOriginPicture());
+                        addEnd(vertexPictures, edgePicture.getTerminusPicture());
+                    }
+                }
+            }
+            java.util.List<AbstractPicture> definitions = new ArrayList<>(vertexPictures);
+            for (EdgePicture picture : edgePictures) {
+                if (isDefinable(picture.getOriginPicture(), vertexPictures) && isDefinable(picture.getTerminusPicture(), vertexPictures)) {
+                    definitions.add(picture);
+                }
+            }
+            output.writeInt(definitions.size());
+            for (AbstractPicture picture : definitions) {
+                writeDefinition(picture);
+                number(picture);
+            }
+            history.write(output, picture -> numbers.getOrDefault(picture, NULL_REFERENCE));
+            return buffer.toByteArray();
+        }
+
+        private void addEnd(Collection<VertexPicture> vertexPictures, VertexPicture end) {
+            if (end != null && ! numbers.containsKey(end) && isWritable(end)) {
+                vertexPictures.add(end);
+            }
+        }
+
+        private boolean isDefinable(VertexPicture end, Collection<VertexPicture> vertexPictures) {
+            return end == null || numbers.containsKey(end) || vertexPictures.contains(end);
+        }
+
+        private void number(AbstractPicture picture) {
+            if (! numbers.containsKey(picture)) {
+                numbers.put(picture, numbers.size());
+                if (picture instanceof VertexPicture) {
+                    Vertex vertex = ((VertexPicture) picture).getVertex();
+                    if (vertex != null && ! vertexPictures.containsKey(vertex)) {
+                        vertexPictures.put(vertex, numbers.size() - 1);
+                    }
+                }
+            }
+        }
+
+        private void writeDefinition(AbstractPicture picture) throws IOException {
+            writeString(picture.getClass().getName());
+            if (picture instanceof VertexPicture) {
+                VertexPicture vertexPicture = (VertexPicture) picture;
+                writeVertex(vertexPicture.getVertex());
+                Point location = vertexPicture.getLocation();
+                output.writeBoolean(location != null);
+                if (location != null) {
+                    output.writeInt(location.x);
+                    output.writeInt(location.y);
+                }
+                Dimension size = vertexPicture.getSize();
+                output.writeBoolean(size != null);
+                if (size != null) {
+                    output.writeInt(size.width);
+                    output.writeInt(size.height);
+                }
+            }
+            else {
+                EdgePicture edgePicture = (EdgePicture) picture;
+                Edge edge = edgePicture.getEdge();
+                output.writeBoolean(edge != null);
+                if (edge != null) {
+                    writeXml(edge);
+                }
+                output.writeInt(endNumber(edgePicture.getOriginPicture()));
+                output.writeInt(endNumber(edgePicture.getTerminusPicture()));
+                writeInts(edgePicture.getXPoints());
+                writeInts(edgePicture.getYPoints());
+                output.writeInt(edgePicture.getOriginAttachmentIndex());
+                output.writeInt(edgePicture.getTerminusAttachmentIndex());
+            }
+            BinaryPersistenceDelegate delegate = binaryPersistenceDelegates.get(picture.getClass());
+            if (delegate == null) {
+                output.writeInt(0);
+                return;
+            }
+            ByteArrayOutputStream extension = new ByteArrayOutputStream();
+            delegate.write(picture, new DataOutputStream(extension));
+            output.writeInt(extension.size());
+            extension.writeTo(output);
+        }
+
+        private void writeVertex(Vertex vertex) throws IOException {
+            if (vertex == null) {
+                output.writeInt(NULL_REFERENCE);
+                return;
+            }
+            Integer number = vertexPictures.get(vertex);
+            if (number != null) {
+                output.writeInt(number);
+                return;
+            }
+            output.writeInt(NEW_VERTEX);
+            writeXml(vertex);
+        }
+
+        /**
+         * Encodes a vertex or edge with the persistence delegates, edges are bound to the vertices of their
+         * pictures again when read.
+         */
+        private void writeXml(Object object) throws IOException {
+            ByteArrayOutputStream xml = new ByteArrayOutputStream();
+            try (XMLEncoder encoder = new XMLEncoder(xml)) {
+                for (Map.Entry<Class, PersistenceDelegate> entry : persistenceDelegates.entrySet()) {
+                    encoder.setPersistenceDelegate(entry.getKey(), entry.getValue());
+                }
+                encoder.writeObject(object);
+            }
+            output.writeInt(xml.size());
+            xml.writeTo(output);
+        }
+
+        private int endNumber(VertexPicture end) {
+            return (end != null) ? numbers.get(end) : NULL_REFERENCE;
+        }
+
+        private void writeInts(int[] values) throws IOException {
+            output.writeInt((values != null) ? values.length : NULL_REFERENCE);
+            if (values != null) {
+                for (int value : values) {
+                    output.writeInt(value);
+                }
+            }
+        }
+
+        private void writeString(String string) throws IOException {
+            if (string == null) {
+                output.writeInt(NULL_REFERENCE);
+                return;
+            }
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        private final Map<AbstractPicture, Integer> numbers = new IdentityHashMap<>();
+        private final Map<Vertex, Integer> vertexPictures = new IdentityHashMap<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream output = new DataOutputStream(buffer);
+    }
+
+
+    private class Reader {
+
+        Reader(DiagramPage page, byte[] section) {
+            pictures.addAll(page.getVertices());
+            pictures.addAll(page.getEdges());
+            input = new DataInputStream(new ByteArrayInputStream(section));
+        }
+
+        void read(DrawHistory history) throws IOException {
+            int count = input.readInt();
+            for (int i = 0; i < count; ++i) {
+                pictures.add(readDefinition());
+            }
+            history.read(input, number -> (0 <= number && number < pictures.size()) ? pictures.get(number) : null);
+        }
+
+        private AbstractPicture readDefinition() throws IOException {
+            AbstractPicture picture = (AbstractPicture) create(readString());
+            if (picture instanceof VertexPicture) {
+                VertexPicture vertexPicture = (VertexPicture) picture;
+                vertexPicture.setVertex(readVertex());
+                vertexPicture.setLocation((input.readBoolean()) ? new Point(input.readInt(), input.readInt()) : null);
+                vertexPicture.setSize((input.readBoolean()) ? new Dimension(input.readInt(), input.readInt()) : null);
+            }
+            else {
+                EdgePicture edgePicture = (EdgePicture) picture;
+                Edge edge = (input.readBoolean()) ? readXml(Edge.class) : null;
+                edgePicture.setOriginPicture((VertexPicture) picture(input.readInt()));
+                edgePicture.setTerminusPicture((VertexPicture) picture(input.readInt()));
+                edgePicture.setXPoints(readInts());
+                edgePicture.setYPoints(readInts());
+                edgePicture.setOriginAttachmentIndex(input.readInt());
+                edgePicture.setTerminusAttachmentIndex(input.readInt());
+                if (edge != null) {
+                    try {
+                        edge.init(edgePicture.getOriginPicture().getVertex(), edgePicture.getTerminusPicture().getVertex());
+                        edgePicture.setEdge(edge);
+                    }
+                    catch (NullPointerException ex) {
+                        throw new IOException("Edge without ends " + edge.getClass().getName(), ex);
+                    }
+                }
+            }
+            byte[] extension = new byte[input.readInt()];
+            input.readFully(extension);
+            BinaryPersistenceDelegate delegate = binaryPersistenceDelegates.get(picture.getClass());
+            if (delegate != null) {
+                delegate.read(picture, new DataInputStream(new ByteArrayInputStream(extension)));
+            }
+            return picture;
+        }
+
+        private Vertex readVertex() throws IOException {
+            int reference = input.readInt();
+            if (reference == NULL_REFERENCE) {
+                return null;
+            }
+            if (reference != NEW_VERTEX) {
+                return ((VertexPicture) picture(reference)).getVertex();
+            }
+            return readXml(Vertex.class);
+        }
+
+        private <T> T readXml(Class<T> type) throws IOException {
+            int length = input.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid " + type.getSimpleName() + " length " + length);
+            }
+            byte[] xml = new byte[length];
+            input.readFully(xml);
+            try (XMLDecoder decoder = new XMLDecoder(new ByteArrayInputStream(xml))) {
+                return type.cast(decoder.readObject());
+            }
+            catch (RuntimeException ex) {
+                throw new IOException("Invalid " + type.getSimpleName(), ex);
+            }
+        }
+
+        private AbstractPicture picture(int number) throws IOException {
+            if (number == NULL_REFERENCE) {
+                return null;
+            }
+            if (number < 0 || pictures.size() <= number) {
+                throw new IOException("Invalid picture number " + number);
+            }
+            return pictures.get(number);
+        }
+
+        private Object create(String className) throws IOException {
+            try {
+                return Class.forName(className, true, Thread.currentThread().getContextClassLoader()).newInstance();
+            }
+            catch (ReflectiveOperationException | ClassCastException | NullPointerException ex) {
+                throw new IOException("Cannot create " + className, ex);
+            }
+        }
+
+        private int[] readInts() throws IOException {
+            int length = input.readInt();
+            if (length == NULL_REFERENCE) {
+                return null;
+            }
+            int[] values = new int[length];
+            for (int i = 0; i < length; ++i) {
+                values[i] = input.readInt();
+            }
+            return values;
+        }
+
+        private String readString() throws IOException {
+            int length = input.readInt();
+            if (length == NULL_REFERENCE) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private final java.util.List<AbstractPicture> pictures = new ArrayList<>();
+        private final DataInputStream input;
+    }
+
+
+    private static class Section {
+
+        Section(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        final long offset;
+        final int length;
+    }
+
+
+    private final File bookFile;
+    private final File file;
+    private final Map<Class, PersistenceDelegate> persistenceDelegates;
+    private final Map<Class, BinaryPersistenceDelegate> binaryPersistenceDelegates;
+
+    private long[] offsets;
+    private int[] lengths;
+    private final Map<DiagramPage, Section> sections = new IdentityHashMap<>();
+
+    private static final String SUFFIX = ".history";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int MAGIC = 0x424B4748; // "BKGH"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    private static final int NULL_REFERENCE = -1;
+    private static final int NEW_VERTEX = Integer.MAX_VALUE;
+
+}
@@ -4,6 +4,7 @@
 package bka.graph.swing;
 
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
 
 
@@ -13,15 +14,19 @@ class HistoryPanel extends javax.swing.JPanel {
     HistoryPanel() {
         initComponents();
         historyList.setCellRenderer(listCellRenderer);
+        historyList.setEnabled(true);
+        historyList.addMouseListener(historyMouseAdapter);
     }
 
 
-    void setDrawHistory(DrawHistory drawHistory) {
-        if (this.drawHistory != null) {
-            this.drawHistory.removeListener(drawHistoryListener);
+    void setDiagramComponent(DiagramComponent diagramComponent) {
+        if (drawHistory != null) {
+            drawHistory.removeListener(drawHistoryListener);
         }
-        this.drawHistory = drawHistory;
+        this.diagramComponent = diagramComponent;
+        drawHistory = diagramComponent.getDrawHistory();
         drawHistory.addListener(drawHistoryListener);
+        listModel.reset();
         updateList();
     }
 
@@ -74,10 +79,8 @@ class HistoryPanel extends javax.swing.JPanel {
 
 
     private void updateList() {
-        listModel.removeAllElements();
-        for (Mutation mutation : drawHistory.getMutattions()) {
-            listModel.addElement(mutation.getClass().getSimpleName());
-        }
+        int dropped = drawHistory.getDroppedCount();
+        historyLabel.setText((dropped > 0) ? HISTORY_TITLE + " (" + dropped + " dropped)" : HISTORY_TITLE);
         int selectedIndex = drawHistory.getIndex() - 1;
         if (selectedIndex >= 0) {
             historyList.setSelectedIndex(selectedIndex);
@@ -85,6 +88,9 @@ class HistoryPanel extends javax.swing.JPanel {
     }
 
 
+    private static final String HISTORY_TITLE = "Draw History";
+
+
     private final DefaultListCellRenderer listCellRenderer = new DefaultListCellRenderer() {
 
         @Override
@@ -105,11 +111,120 @@ class HistoryPanel extends javax.swing.JPanel {
     };
 
 
+    /**
+     * Shows the mutations of the draw history as they are, a change of the history fires events for the
+     * rows it affects only. Adding a mutation drops the undone mutations, and possibly the oldest ones.
+     * Rows are a copy of the mutations, changed along with the events so listeners find the rows each event reports.
+     */
+    private class HistoryListModel extends AbstractListModel<String> {
+
+        @Override
+        public int getSize() {
+            return rows.size();
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return rows.get(index).getClass().getSimpleName();
+        }
+
+        /**
+         * Replaces all rows, for a history that is shown for the first time.
+         */
+        void reset() {
+            if (! rows.isEmpty()) {
+                int removed = rows.size();
+                rows.clear();
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            rows.addAll(drawHistory.getMutattions());
+            remember();
+            if (! rows.isEmpty()) {
+                fireIntervalAdded(this, 0, rows.size() - 1);
+            }
+        }
+
+        void update() {
+            java.util.List<Mutation> mutations = drawHistory.getMutattions();
+            int size = rows.size();
+            int newSize = mutations.size();
+            int dropped = drawHistory.getDroppedCount() - droppedCount;
+            Mutation last = (size > 0) ? rows.get(size - 1) : null;
+            Mutation newLast = (newSize > 0) ? mutations.get(newSize - 1) : null;
+            if (dropped == 0 && newSize == size && newLast == last) {
+                // Undone, redone or coalesced
+                int newIndex = drawHistory.getIndex();
+                int from = Math.max(0, Math.min(index, newIndex) - 1);
+                int to = Math.min(size, Math.max(index, newIndex)) - 1;
+                if (newIndex == index && size > 0) {
+                    from = size - 1;
+                    to = size - 1;
+                }
+                remember();
+                if (from <= to) {
+                    fireContentsChanged(this, from, to);
+                }
+                return;
+            }
+            int kept = Math.max(0, index - dropped);
+            boolean added = dropped >= 0 && newSize == kept + 1 && (kept == 0 || mutations.get(kept - 1) == beforeIndex);
+            if (! added) {
+                reset();
+                return;
+            }
+            int removedFront = Math.min(dropped, size);
+            if (removedFront > 0) {
+                rows.subList(0, removedFront).clear();
+                fireIntervalRemoved(this, 0, removedFront - 1);
+            }
+            int remaining = rows.size();
+            if (remaining > kept) {
+                rows.subList(kept, remaining).clear();
+                fireIntervalRemoved(this, kept, remaining - 1);
+            }
+            rows.add(mutations.get(kept));
+            fireIntervalAdded(this, kept, kept);
+            remember();
+        }
+
+        private void remember() {
+            index = drawHistory.getIndex();
+            droppedCount = drawHistory.getDroppedCount();
+            beforeIndex = (index > 0) ? rows.get(index - 1) : null;
+        }
+
+        private final java.util.List<Mutation> rows = new java.util.ArrayList<>();
+
+        // State of the history as last shown
+        private int index;
+        private int droppedCount;
+        private Mutation beforeIndex;
+    }
+
+
+    /**
+     * Clicking a mutation brings the diagram to the state right after it.
+     */
+    private final MouseAdapter historyMouseAdapter = new MouseAdapter() {
+
+        @Override
+        public void mouseClicked(MouseEvent evt) {
+            int row = historyList.locationToIndex(evt.getPoint());
+            if (diagramComponent != null && row >= 0 && historyList.getCellBounds(row, row).contains(evt.getPoint())) {
+                diagramComponent.jumpInHistory(row + 1);
+                updateList();
+            }
+        }
+
+    };
+
+
     private final DrawHistory.Listener drawHistoryListener = new DrawHistory.Listener() {
         
         @Override
         public void historyChanged(DrawHistory drawHistory) {
             if (HistoryPanel.this.drawHistory == drawHistory) {
+                listModel.update();
                 updateList();
             }
         }
@@ -123,8 +238,9 @@ class HistoryPanel extends javax.swing.JPanel {
     private javax.swing.JScrollPane historyScrollPane;
     // End of variables declaration//GEN-END:variables
 
-    private final DefaultListModel listModel = new DefaultListModel();
+    private final HistoryListModel listModel = new HistoryListModel();
 
+    private DiagramComponent diagramComponent;
     private DrawHistory drawHistory;
 
 }
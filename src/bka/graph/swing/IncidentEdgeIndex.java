@@ -0,0 +1,80 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import java.util.*;
+
+
+/**
+ * Index of the edge pictures attached to each vertex picture.
+ * The origin and terminus of an edge picture are remembered when it is indexed, so the index can be updated
+ * when they change. Adding, removing and updating an edge picture is O(1), finding the edge pictures of a
+ * vertex picture is proportional to their number.
+ */
+class IncidentEdgeIndex {
+
+
+    void add(EdgePicture edgePicture) {
+        VertexPicture[] ends = new VertexPicture[] { edgePicture.getOriginPicture(), edgePicture.getTerminusPicture() };
+        indexedEnds.put(edgePicture, ends);
+        for (VertexPicture end : ends) {
+            if (end != null) {
+                Collection<EdgePicture> incident = incidentEdges.get(end);
+                if (incident == null) {
+                    incident = new LinkedHashSet<>();
+                    incidentEdges.put(end, incident);
+                }
+                incident.add(edgePicture);
+            }
+        }
+    }
+
+
+    void remove(EdgePicture edgePicture) {
+        VertexPicture[] ends = indexedEnds.remove(edgePicture);
+        if (ends != null) {
+            for (VertexPicture end : ends) {
+                Collection<EdgePicture> incident = (end != null) ? incidentEdges.get(end) : null;
+                if (incident != null) {
+                    incident.remove(edgePicture);
+                    if (incident.isEmpty()) {
+                        incidentEdges.remove(end);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Moves edgePicture to the vertex pictures it is currently attached to.
+     * @param edgePicture
+     * @return true if the origin or terminus of edgePicture changed since it was indexed.
+     */
+    boolean update(EdgePicture edgePicture) {
+        VertexPicture[] ends = indexedEnds.get(edgePicture);
+        if (ends == null || ends[0] == edgePicture.getOriginPicture() && ends[1] == edgePicture.getTerminusPicture()) {
+            return false;
+        }
+        remove(edgePicture);
+        add(edgePicture);
+        return true;
+    }
+
+
+    /**
+     * @param vertexPicture
+     * @return Indexed edge pictures with vertexPicture as origin or terminus, in no particular order.
+     */
+    Collection<EdgePicture> find(VertexPicture vertexPicture) {
+        Collection<EdgePicture> incident = incidentEdges.get(vertexPicture);
+        return (incident != null) ? new ArrayList<>(incident) : new ArrayList<>();
+    }
+
+
+    private final Map<EdgePicture, VertexPicture[]> indexedEnds = new HashMap<>();
+    private final Map<VertexPicture, Collection<EdgePicture>> incidentEdges = new HashMap<>();
+
+}
@@ -5,4 +5,9 @@ interface Mutation {
     void undo();
     void redo();
 
+    /**
+     * @return Estimated number of bytes the mutation keeps in memory
+     */
+    long estimatedSize();
+
 }
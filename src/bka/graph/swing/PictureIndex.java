@@ -0,0 +1,180 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import java.awt.*;
+import java.util.*;
+
+
+/**
+ * Spatial index of picture bounds.
+ * Pictures are stored in a hierarchy of loose grids. A picture is kept in the cell of the
+ * smallest grid that can hold its bounds, the cell being determined by the center of the bounds.
+ * Adding, removing and updating a picture is O(1), finding the pictures at a point is
+ * proportional to the number of pictures near that point.
+ */
+class PictureIndex {
+
+
+    void add(AbstractPicture picture) {
+        Rectangle bounds = picture.paintBounds();
+        indexedBounds.put(picture, bounds);
+        long key = cellKey(bounds);
+        Collection<AbstractPicture> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<>();
+            cells.put(key, cell);
+        }
+        cell.add(picture);
+        levelCounts[level(key)]++;
+    }
+
+
+    void remove(AbstractPicture picture) {
+        Rectangle bounds = indexedBounds.remove(picture);
+        if (bounds != null) {
+            long key = cellKey(bounds);
+            Collection<AbstractPicture> cell = cells.get(key);
+            cell.remove(picture);
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+            levelCounts[level(key)]--;
+        }
+    }
+
+
+    /**
+     * Moves picture to the cell that matches its current bounds.
+     * @param picture
+     * @return true if the bounds of picture changed since it was indexed.
+     */
+    boolean update(AbstractPicture picture) {
+        Rectangle bounds = indexedBounds.get(picture);
+        if (bounds == null || bounds.equals(picture.paintBounds())) {
+            return false;
+        }
+        remove(picture);
+        add(picture);
+        return true;
+    }
+
+
+    void clear() {
+        indexedBounds.clear();
+        cells.clear();
+        Arrays.fill(levelCounts, 0);
+    }
+
+
+    boolean contains(AbstractPicture picture) {
+        return indexedBounds.containsKey(picture);
+    }
+
+
+    /**
+     * @param picture
+     * @return Bounds of picture when it was indexed, or null if picture is not indexed.
+     */
+    Rectangle getBounds(AbstractPicture picture) {
+        Rectangle bounds = indexedBounds.get(picture);
+        return (bounds != null) ? new Rectangle(bounds) : null;
+    }
+
+
+    /**
+     * @param point
+     * @return Pictures with indexed bounds containing point, in no particular order.
+     */
+    Collection<AbstractPicture> find(Point point) {
+        return find(new Rectangle(point.x, point.y, 1, 1));
+    }
+
+
+    /**
+     * @param area
+     * @return Pictures with indexed bounds intersecting area, in no particular order.
+     */
+    Collection<AbstractPicture> find(Rectangle area) {
+        Collection<AbstractPicture> found = new ArrayList<>();
+        if (cellCount(area) > indexedBounds.size()) {
+            for (Map.Entry<AbstractPicture, Rectangle> entry : indexedBounds.entrySet()) {
+                if (entry.getValue().intersects(area)) {
+                    found.add(entry.getKey());
+                }
+            }
+            return found;
+        }
+        for (int level = 0; level < LEVEL_COUNT; ++level) {
+            if (levelCounts[level] > 0) {
+                int cellSize = cellSize(level);
+                int half = cellSize / 2;
+                int columnMax = Math.floorDiv(area.x + area.width + half, cellSize);
+                int rowMax = Math.floorDiv(area.y + area.height + half, cellSize);
+                for (int column = Math.floorDiv(area.x - half, cellSize); column <= columnMax; ++column) {
+                    for (int row = Math.floorDiv(area.y - half, cellSize); row <= rowMax; ++row) {
+                        Collection<AbstractPicture> cell = cells.get(cellKey(level, column, row));
+                        if (cell != null) {
+                            for (AbstractPicture picture : cell) {
+                                if (indexedBounds.get(picture).intersects(area)) {
+                                    found.add(picture);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+
+    private long cellCount(Rectangle area) {
+        long count = 0;
+        for (int level = 0; level < LEVEL_COUNT; ++level) {
+            if (levelCounts[level] > 0) {
+                int cellSize = cellSize(level);
+                count += ((long) area.width / cellSize + 2) * ((long) area.height / cellSize + 2);
+            }
+        }
+        return count;
+    }
+
+
+    private static long cellKey(Rectangle bounds) {
+        int size = Math.max(bounds.width, bounds.height);
+        int level = 0;
+        while (level < LEVEL_COUNT - 1 && cellSize(level) < size) {
+            level++;
+        }
+        int cellSize = cellSize(level);
+        return cellKey(level, Math.floorDiv(bounds.x + bounds.width / 2, cellSize), Math.floorDiv(bounds.y + bounds.height / 2, cellSize));
+    }
+
+
+    private static long cellKey(int level, int column, int row) {
+        return ((long) level << 58) | ((long) (column & COORDINATE_MASK) << 29) | (row & COORDINATE_MASK);
+    }
+
+
+    private static int level(long cellKey) {
+        return (int) (cellKey >>> 58);
+    }
+
+
+    private static int cellSize(int level) {
+        return BASE_CELL_SIZE << level;
+    }
+
+
+    private final Map<AbstractPicture, Rectangle> indexedBounds = new HashMap<>();
+    private final Map<Long, Collection<AbstractPicture>> cells = new HashMap<>();
+    private final int[] levelCounts = new int[LEVEL_COUNT];
+
+    private static final int BASE_CELL_SIZE = 64;
+    private static final int LEVEL_COUNT = 25;
+    private static final int COORDINATE_MASK = (1 << 29) - 1;
+
+}
@@ -0,0 +1,294 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Offscreen images of the static part of a diagram, in tiles of TILE_SIZE device pixels.
+ * Only invalidated parts of tiles are rendered again, the rest is copied from the images.
+ * Least recently used tiles are evicted when the tiles exceed the memory budget.
+ * In parallel mode invalid tiles are rendered concurrently by the common ForkJoinPool.
+ */
+class SceneCache {
+
+
+    interface Renderer {
+        /**
+         * Called by the painting thread before rendering.
+         * @param area to render, null for everything
+         * @return Scene containing everything that must be rendered in area
+         */
+        Scene snapshot(Rectangle area);
+    }
+
+
+    interface Scene {
+        /**
+         * Renders the part of this scene within area. May be called by several threads at once.
+         * @param g2d
+         * @param area
+         */
+        void render(Graphics2D g2d, Rectangle area);
+
+        /**
+         * Called by the painting thread when all rendering of this scene is finished.
+         */
+        void rendered();
+    }
+
+
+    SceneCache(Renderer renderer, long memoryBudget, boolean parallel) {
+        this.renderer = Objects.requireNonNull(renderer);
+        this.memoryBudget = memoryBudget;
+        this.parallel = parallel;
+    }
+
+
+    void invalidate(Rectangle area) {
+        for (Tile tile : tiles.values()) { // Iterating does not affect the access order
+            tile.invalidate(area);
+        }
+    }
+
+
+    void invalidateAll() {
+        for (Tile tile : tiles.values()) {
+            tile.invalid = new Rectangle(tile.bounds);
+        }
+    }
+
+
+    void flush() {
+        for (Tile tile : tiles.values()) {
+            tile.image.flush();
+        }
+        tiles.clear();
+        if (spareImage != null) {
+            spareImage.flush();
+            spareImage = null;
+        }
+    }
+
+
+    /**
+     * Draws the scene within clip onto g2d, after rendering the invalid parts of tiles covering clip.
+     * @param g2d
+     * @param clip
+     */
+    void paint(Graphics2D g2d, Rectangle clip) {
+        AffineTransform transform = g2d.getTransform();
+        if (transform.getShearX() != 0.0 || transform.getShearY() != 0.0 || transform.getScaleX() != transform.getScaleY() || transform.getScaleX() <= 0.0) {
+            Scene scene = renderer.snapshot(clip);
+            scene.render(g2d, clip);
+            scene.rendered();
+            return;
+        }
+        if (transform.getScaleX() != scale) {
+            flush();
+            scale = transform.getScaleX();
+        }
+        Rectangle range = tileRange(clip);
+        ArrayList<Tile> visibleTiles = new ArrayList<>();
+        for (int column = range.x; column < range.x + range.width; ++column) {
+            for (int row = range.y; row < range.y + range.height; ++row) {
+                visibleTiles.add(obtainTile(g2d, column, row, visibleTiles.size()));
+            }
+        }
+        renderTiles(visibleTiles);
+        g2d.setTransform(AffineTransform.getTranslateInstance(transform.getTranslateX(), transform.getTranslateY()));
+        try {
+            for (Tile tile : visibleTiles) {
+                g2d.drawImage(tile.image, tile.column * TILE_SIZE, tile.row * TILE_SIZE, null);
+            }
+        }
+        finally {
+            g2d.setTransform(transform);
+        }
+        evictTiles();
+    }
+
+
+    /**
+     * Renders the invalid parts of given tiles from one snapshot of the scene.
+     * In parallel mode the first tile is rendered by the calling thread while the others are
+     * rendered by the pool, each tile on its own image.
+     */
+    private void renderTiles(Collection<Tile> candidates) {
+        Map<Tile, Rectangle> invalidTiles = new LinkedHashMap<>();
+        Rectangle area = null;
+        for (Tile tile : candidates) {
+            if (tile.invalid != null) {
+                Rectangle invalid = tile.invalid;
+                tile.invalid = null; // Rendering may invalidate again
+                invalid.grow(1, 1); // Avoid seams at fractional scales
+                invalidTiles.put(tile, invalid);
+                if (area == null) {
+                    area = new Rectangle(invalid);
+                }
+                else {
+                    area.add(invalid);
+                }
+            }
+        }
+        if (area == null) {
+            return;
+        }
+        Scene scene = renderer.snapshot(area);
+        if (parallel && invalidTiles.size() > 1) {
+            Collection<ForkJoinTask<?>> tasks = new ArrayList<>();
+            Iterator<Map.Entry<Tile, Rectangle>> iterator = invalidTiles.entrySet().iterator();
+            Map.Entry<Tile, Rectangle> first = iterator.next();
+            while (iterator.hasNext()) {
+                Map.Entry<Tile, Rectangle> entry = iterator.next();
+                tasks.add(ForkJoinPool.commonPool().submit(() -> entry.getKey().render(scene, entry.getValue())));
+            }
+            first.getKey().render(scene, first.getValue());
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+        else {
+            for (Map.Entry<Tile, Rectangle> entry : invalidTiles.entrySet()) {
+                entry.getKey().render(scene, entry.getValue());
+            }
+        }
+        scene.rendered();
+    }
+
+
+    /**
+     * @param area in scene coordinates
+     * @return Columns and rows of tiles covering area
+     */
+    private Rectangle tileRange(Rectangle area) {
+        int columnMin = (int) Math.floor(area.x * scale / TILE_SIZE);
+        int rowMin = (int) Math.floor(area.y * scale / TILE_SIZE);
+        int columnMax = (int) Math.floor(((area.x + area.width) * scale - 1) / TILE_SIZE);
+        int rowMax = (int) Math.floor(((area.y + area.height) * scale - 1) / TILE_SIZE);
+        return new Rectangle(columnMin, rowMin, Math.max(0, columnMax - columnMin + 1), Math.max(0, rowMax - rowMin + 1));
+    }
+
+
+    /**
+     * @param inUse number of tiles needed for the current paint, these are the most recently used.
+     */
+    private Tile obtainTile(Graphics2D g2d, int column, int row, int inUse) {
+        long key = tileKey(column, row);
+        Tile tile = tiles.get(key);
+        if (tile == null) {
+            tile = new Tile(column, row, createImage(g2d, inUse));
+            tiles.put(key, tile);
+        }
+        return tile;
+    }
+
+
+    private BufferedImage createImage(Graphics2D g2d, int inUse) {
+        if (tiles.size() * TILE_BYTES >= memoryBudget && tiles.size() > inUse) {
+            Iterator<Tile> eldest = tiles.values().iterator();
+            BufferedImage image = eldest.next().image;
+            eldest.remove();
+            return image;
+        }
+        if (spareImage != null) {
+            BufferedImage image = spareImage;
+            spareImage = null;
+            return image;
+        }
+        GraphicsConfiguration configuration = g2d.getDeviceConfiguration();
+        return (configuration != null)
+            ? configuration.createCompatibleImage(TILE_SIZE, TILE_SIZE, Transparency.TRANSLUCENT)
+            : new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+    }
+
+
+    private void evictTiles() {
+        Iterator<Tile> eldest = tiles.values().iterator();
+        while (tiles.size() * TILE_BYTES > memoryBudget && eldest.hasNext()) {
+            BufferedImage image = eldest.next().image;
+            eldest.remove();
+            if (spareImage == null) {
+                spareImage = image;
+            }
+            else {
+                image.flush();
+            }
+        }
+    }
+
+
+    private static long tileKey(int column, int row) {
+        return ((long) column << 32) | (row & 0xFFFFFFFFL);
+    }
+
+
+    private class Tile {
+
+        Tile(int column, int row, BufferedImage image) {
+            this.column = column;
+            this.row = row;
+            this.image = image;
+            int x = (int) Math.floor(column * TILE_SIZE / scale);
+            int y = (int) Math.floor(row * TILE_SIZE / scale);
+            bounds = new Rectangle(x, y, (int) Math.ceil((column + 1) * TILE_SIZE / scale) - x, (int) Math.ceil((row + 1) * TILE_SIZE / scale) - y);
+            invalid = new Rectangle(bounds);
+        }
+
+        void invalidate(Rectangle area) {
+            if (area.intersects(bounds)) {
+                Rectangle intersection = area.intersection(bounds);
+                if (invalid == null) {
+                    invalid = intersection;
+                }
+                else {
+                    invalid.add(intersection);
+                }
+            }
+        }
+
+        void render(Scene scene, Rectangle area) {
+            Graphics2D g2d = image.createGraphics();
+            try {
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                g2d.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+                g2d.scale(scale, scale);
+                g2d.setClip(area);
+                g2d.setComposite(AlphaComposite.Clear);
+                g2d.fill(area);
+                g2d.setComposite(AlphaComposite.SrcOver);
+                scene.render(g2d, area);
+            }
+            finally {
+                g2d.dispose();
+            }
+        }
+
+        final int column;
+        final int row;
+        final BufferedImage image;
+        final Rectangle bounds;
+        Rectangle invalid;
+    }
+
+
+    private final Renderer renderer;
+    private final long memoryBudget;
+    private final boolean parallel;
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private BufferedImage spareImage;
+    private double scale = 1.0;
+
+    private static final int TILE_SIZE = 256;
+    private static final long TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+}
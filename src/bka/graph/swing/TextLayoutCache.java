@@ -0,0 +1,89 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import java.awt.font.*;
+import java.text.AttributedCharacterIterator.Attribute;
+import java.text.*;
+import java.util.*;
+
+
+/**
+ * Laid out texts by text, attributes and font render context.
+ * Least recently used layouts are evicted when the cache exceeds its capacity.
+ * The cache may be used by several threads at once.
+ */
+class TextLayoutCache {
+
+
+    TextLayoutCache(int capacity) {
+        layouts = new LinkedHashMap<Key, TextLayout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, TextLayout> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /**
+     * @param text not empty
+     * @param attributes
+     * @param fontRenderContext
+     * @return Layout of text with attributes, shaped only if not cached yet.
+     */
+    TextLayout get(String text, Map<? extends Attribute, ?> attributes, FontRenderContext fontRenderContext) {
+        Key key = new Key(text, attributes, fontRenderContext);
+        synchronized (lock) {
+            TextLayout layout = layouts.get(key);
+            if (layout != null) {
+                return layout;
+            }
+        }
+        AttributedString string = new AttributedString(text);
+        string.addAttributes(attributes, 0, text.length());
+        TextLayout layout = new TextLayout(string.getIterator(), fontRenderContext);
+        key.attributes = new HashMap<>(attributes); // Attributes of caller may change later
+        synchronized (lock) {
+            layouts.put(key, layout);
+        }
+        return layout;
+    }
+
+
+    private static class Key {
+
+        Key(String text, Map<? extends Attribute, ?> attributes, FontRenderContext fontRenderContext) {
+            this.text = text;
+            this.attributes = attributes;
+            this.fontRenderContext = fontRenderContext;
+            hashCode = Objects.hash(text, attributes, fontRenderContext);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (! (other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hashCode == key.hashCode && text.equals(key.text) && attributes.equals(key.attributes) && fontRenderContext.equals(key.fontRenderContext);
+        }
+
+        private final String text;
+        private Map<? extends Attribute, ?> attributes;
+        private final FontRenderContext fontRenderContext;
+        private final int hashCode;
+    }
+
+
+    private final Map<Key, TextLayout> layouts;
+    private final Object lock = new Object();
+
+}
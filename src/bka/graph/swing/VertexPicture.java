@@ -278,13 +278,15 @@ public class VertexPicture extends AbstractPicture {
 
     
     protected Paint getFillPaint() {
-        if (fillPaint == null) {
-            fillPaint = getDrawStyle().createGradientPaint(AbstractPicture.DrawStyleKey.FILL, new Rectangle2D.Float(xWest(), yNorth(), size.width, size.height));
-            if (fillPaint == null) {
-                fillPaint = getColor(AbstractPicture.DrawStyleKey.FILL);
+        Paint paint = fillPaint; // Painting threads may compute it at once
+        if (paint == null) {
+            paint = getDrawStyle().createGradientPaint(AbstractPicture.DrawStyleKey.FILL, new Rectangle2D.Float(xWest(), yNorth(), size.width, size.height));
+            if (paint == null) {
+                paint = getColor(AbstractPicture.DrawStyleKey.FILL);
             }
+            fillPaint = paint;
         }
-        return fillPaint;
+        return paint;
     }
 
 
@@ -357,7 +359,7 @@ public class VertexPicture extends AbstractPicture {
             Rectangle2D bounds = layout.getBounds();
             double x = position.getX() - bounds.getWidth() / 2.0;
             double y = position.getY() - bounds.getCenterY() / 2.0;
-            layout.draw(g2d, (float) x, (float) y);
+            draw(g2d, layout, x, y);
         }
     }
     
@@ -369,7 +371,7 @@ public class VertexPicture extends AbstractPicture {
         double y = location.getY() - bounds.getCenterY() / 2.0;
         if (layout != null) {
             g2d.setColor(getColor(DrawStyleKey.TEXT));
-            layout.draw(g2d, (float) x, (float) y);
+            draw(g2d, layout, x, y);
         }
         putTextArea(key, x, y, bounds);
     }
@@ -382,7 +384,7 @@ public class VertexPicture extends AbstractPicture {
         double x = position.getX() - bounds.getWidth() / 2.0;
         if (layout != null) {
             g2d.setColor(getColor(DrawStyleKey.TEXT));
-            layout.draw(g2d, (float) x, (float) position.getY() - layout.getBaseline());
+            draw(g2d, layout, x, position.getY() - layout.getBaseline());
         }
         putTextArea(key, x, position.getY(), bounds);
     }
@@ -416,7 +418,7 @@ public class VertexPicture extends AbstractPicture {
                 bounds = layout.getBounds();
                 double y = position.getY() - layout.getBaseline();
                 g2d.setColor(getColor(DrawStyleKey.TEXT));
-                layout.draw(g2d, (float) x, (float) y);
+                draw(g2d, layout, x, y);
             }
             else {
                 bounds = emptyBounds(g2d);
@@ -440,12 +442,17 @@ public class VertexPicture extends AbstractPicture {
         if (text == null || text.isEmpty()) {
             return null;
         }
-        AttributedString string = new AttributedString(text);
-        string.addAttributes(attributes, 0, text.length());
-        return new TextLayout(string.getIterator(), g2d.getFontRenderContext());
+        return LAYOUT_CACHE.get(text, attributes, g2d.getFontRenderContext());
     }
     
     
+    private void draw(Graphics2D g2d, TextLayout layout, double x, double y) {
+        layout.draw(g2d, (float) x, (float) y);
+        Rectangle2D bounds = layout.getBounds();
+        includeTextExtent(new Rectangle2D.Double(x + bounds.getX(), y + bounds.getY(), bounds.getWidth(), bounds.getHeight()));
+    }
+
+
    private static Rectangle2D emptyBounds(Graphics2D g2d) {
         return new Rectangle2D.Double(0, 0, 1, g2d.getFontMetrics().getHeight());
     }
@@ -500,9 +507,11 @@ public class VertexPicture extends AbstractPicture {
     protected Point location;     
     protected Dimension size;
     protected Point[] attachmentPoints;
-    private Paint fillPaint;
+    private volatile Paint fillPaint;
     
     private static final int LOCATION_NEAR_DISTANCE = 3;
     private static final int ATTACHMENT_NEAR_DISTANCE = 100;
 
+    private static final TextLayoutCache LAYOUT_CACHE = new TextLayoutCache(4096);
+
 }
@@ -6,6 +6,7 @@ package bka.graph.swing;
 
 import bka.awt.*;
 import bka.graph.*;
+import bka.graph.document.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.util.*;
@@ -25,14 +26,16 @@ class VertexTreePanel extends javax.swing.JPanel {
     }
     
     
+    /**
+     * Vertices of pages that are not loaded are added when the pages are loaded.
+     */
     void rebuild() {
         rootNode.removeAllChildren();
-        for (DiagramComponent diagramComponent : graphEditor.getDiagramComponents()) {
-            DiagramNode diagramNode = new DiagramNode(diagramComponent);
+        for (DiagramPage page : graphEditor.getDiagramPages()) {
+            DiagramNode diagramNode = new DiagramNode(page);
             rootNode.add(diagramNode);
-            for (VertexPicture vertexPicture : diagramComponent.getVertexPictures()) {
-                VertexPictureNode vertexPictureNode = new VertexPictureNode(vertexPicture, diagramComponent);
-                diagramNode.add(vertexPictureNode);
+            if (page.isLoaded()) {
+                addVertexNodes(diagramNode, page);
             }
         }
         treeModel.nodeStructureChanged(rootNode);
@@ -64,17 +67,37 @@ class VertexTreePanel extends javax.swing.JPanel {
     }
     
     
-    void diagramModified(DiagramComponent diagramComponent) {
-        DiagramNode diagramNode = findDiagramNode(diagramComponent);
+    void diagramModified(DiagramPage page) {
+        DiagramNode diagramNode = findDiagramNode(page);
         if (diagramNode != null) {
             treeModel.nodeChanged(diagramNode);
         }
     }
     
     
+    void diagramLoaded(DiagramPage page) {
+        DiagramNode diagramNode = findDiagramNode(page);
+        if (diagramNode != null && page.isLoaded()) {
+            diagramNode.removeAllChildren();
+            addVertexNodes(diagramNode, page);
+            treeModel.nodeStructureChanged(diagramNode);
+            expand(diagramNode);
+        }
+    }
+
+
+    void diagramReleased(DiagramPage page) {
+        DiagramNode diagramNode = findDiagramNode(page);
+        if (diagramNode != null) {
+            diagramNode.removeAllChildren();
+            treeModel.nodeStructureChanged(diagramNode);
+        }
+    }
+
+
     void vertexAdded(VertexPicture vertexPicture, DiagramComponent diagramComponent) {
-        DefaultMutableTreeNode parentNode = findNode(diagramComponent);
-        VertexPictureNode vertexNode = new VertexPictureNode(vertexPicture, diagramComponent);
+        DefaultMutableTreeNode parentNode = findNode(diagramComponent.getPage());
+        VertexPictureNode vertexNode = new VertexPictureNode(vertexPicture, diagramComponent.getPage());
         parentNode.add(vertexNode);
         treeModel.nodeStructureChanged(parentNode);
         expand(parentNode);
@@ -130,11 +153,11 @@ class VertexTreePanel extends javax.swing.JPanel {
     }// </editor-fold>//GEN-END:initComponents
 
     
-    private DiagramNode findDiagramNode(DiagramComponent diagramComponent) {
+    private DiagramNode findDiagramNode(DiagramPage page) {
         Enumeration en = rootNode.children();
         while (en.hasMoreElements()) {
             DiagramNode node = (DiagramNode) en.nextElement();
-            if (node.getUserObject() == diagramComponent) {
+            if (node.getUserObject() == page) {
                 return node;
             }
         }
@@ -165,6 +188,13 @@ class VertexTreePanel extends javax.swing.JPanel {
     }
 
     
+    private void addVertexNodes(DiagramNode diagramNode, DiagramPage page) {
+        for (VertexPicture vertexPicture : graphEditor.getVertexPictures(page)) {
+            diagramNode.add(new VertexPictureNode(vertexPicture, page));
+        }
+    }
+
+
     private void expand(DefaultMutableTreeNode node) {
         TreeNode[] pathNodes = node.getPath();
         TreePath treePath = new TreePath(pathNodes);
@@ -182,13 +212,13 @@ class VertexTreePanel extends javax.swing.JPanel {
     
     private class DiagramNode extends DefaultMutableTreeNode {
     
-        DiagramNode(DiagramComponent diagramComponent) {
-            super(diagramComponent);
+        DiagramNode(DiagramPage page) {
+            super(page);
         }
         
         @Override
         public String toString() {
-            return ((DiagramComponent) getUserObject()).getTitle();
+            return ((DiagramPage) getUserObject()).getTitle();
         }
     
     }
@@ -196,9 +226,9 @@ class VertexTreePanel extends javax.swing.JPanel {
     
     private class VertexPictureNode extends DefaultMutableTreeNode {
         
-        VertexPictureNode(VertexPicture vertexPicture, DiagramComponent diagramComponent) {
+        VertexPictureNode(VertexPicture vertexPicture, DiagramPage page) {
             super(vertexPicture);
-            this.diagramComponent = diagramComponent;
+            this.page = page;
         }
         
         @Override
@@ -218,7 +248,7 @@ class VertexTreePanel extends javax.swing.JPanel {
             else {
                 Logger.getLogger(VertexTreePanel.class.getName()).log(Level.WARNING, "Null vertex");
             }
-            VertexPicture container = diagramComponent.findContainer((VertexPicture) getUserObject());
+            VertexPicture container = graphEditor.findContainer(page, (VertexPicture) getUserObject());
             if (container != null) {
                 builder.append(" @ ");
                 if (container.getVertex() != null) {
@@ -237,7 +267,7 @@ class VertexTreePanel extends javax.swing.JPanel {
             return builder.toString();
         }
         
-        DiagramComponent diagramComponent;
+        DiagramPage page;
         javax.swing.Icon icon;
 
     }
@@ -358,7 +388,7 @@ class VertexTreePanel extends javax.swing.JPanel {
 
         private void selectPictureInDiagram(DefaultMutableTreeNode node) {
             DefaultMutableTreeNode parent = (DefaultMutableTreeNode) node.getParent();
-            DiagramComponent diagramComponent = (DiagramComponent) parent.getUserObject();
+            DiagramComponent diagramComponent = graphEditor.getDiagramComponent((DiagramPage) parent.getUserObject());
             diagramComponent.setSelected((AbstractPicture) node.getUserObject());
             if (diagramComponent.isShowing()) {
                 diagramComponent.repaint();
@@ -379,7 +409,7 @@ class VertexTreePanel extends javax.swing.JPanel {
                 DefaultMutableTreeNode node = getSelectedNode();
                 if (node.getUserObject() instanceof VertexPicture) {
                     DefaultMutableTreeNode parent = (DefaultMutableTreeNode) node.getParent();
-                    DiagramComponent diagramComponent = (DiagramComponent) parent.getUserObject();
+                    DiagramComponent diagramComponent = graphEditor.getDiagramComponent((DiagramPage) parent.getUserObject());
                     diagramComponent.removeVertex((VertexPicture) node.getUserObject());
                 }
             }
@@ -0,0 +1,117 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.document;
+
+import bka.graph.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+public class BookJournalTest {
+
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("BookJournalTest").toFile();
+        bookFile = new File(directory, "driehoek.graph");
+        BookTest.load(BookTest.copyFixture(directory)).save(bookFile);
+    }
+
+
+    @After
+    public void tearDown() {
+        BookTest.deleteDirectory(directory);
+    }
+
+
+    @Test
+    public void testReplay() throws IOException {
+        Book edited = editAndRecord();
+        Book recovered = recover(2);
+        BookTest.assertSameContent(edited, recovered);
+    }
+
+
+    @Test
+    public void testReplayWithTruncatedLastRecord() throws IOException {
+        Book edited = editAndRecord();
+        try (FileOutputStream output = new FileOutputStream(bookFile.getPath() + JOURNAL_SUFFIX, true)) {
+            output.write(new byte[] { 0, 0, 1 }); // Length of a record that was not written completely
+        }
+        Book recovered = recover(2);
+        BookTest.assertSameContent(edited, recovered);
+    }
+
+
+    @Test
+    public void testCompactedJournalNeedsNoRecovery() throws IOException {
+        Book edited = editAndRecord();
+        Book book = new Book(null);
+        BookJournal journal = new BookJournal(book, bookFile);
+        java.util.List<DiagramPage> pages = new ArrayList<>();
+        book.load(bookFile, pages::add);
+        journal.recover(pages);
+        for (DiagramPage page : pages) {
+            book.addPage(page);
+        }
+        journal.pagesLoaded();
+        journal.compact();
+        journal.close();
+        assertFalse(new BookJournal(new Book(null), bookFile).needsRecovery());
+        BookTest.assertSameContent(edited, BookTest.load(bookFile));
+    }
+
+
+    /**
+     * Moves a vertex and adds a vertex to the book, records both changes and closes the journal.
+     * @return book as edited
+     */
+    private Book editAndRecord() throws IOException {
+        Book book = new Book(null);
+        BookJournal journal = new BookJournal(book, bookFile);
+        book.load(bookFile, page -> {
+            journal.pageLoaded(page);
+            book.addPage(page);
+        });
+        journal.pagesLoaded();
+        DiagramPage page = book.getDiagramPages().get(0);
+        VertexPicture moved = BookTest.firstVertexPicture(page);
+        moved.setLocation(new Point(50, 60));
+        journal.record(page, Arrays.asList(moved));
+        VertexPicture added = new VertexPicture();
+        added.setVertex(new bka.graph.NamedVertex());
+        added.setLocation(new Point(70, 80));
+        page.add(added);
+        journal.record(page, Arrays.asList(added));
+        journal.close();
+        return book;
+    }
+
+
+    private Book recover(int expectedCount) throws IOException {
+        Book book = new Book(null);
+        BookJournal journal = new BookJournal(book, bookFile);
+        assertTrue(journal.needsRecovery());
+        java.util.List<DiagramPage> pages = new ArrayList<>();
+        book.load(bookFile, pages::add);
+        assertEquals(expectedCount, journal.recover(pages));
+        for (DiagramPage page : pages) {
+            book.addPage(page);
+        }
+        journal.close();
+        return book;
+    }
+
+
+    private File directory;
+    private File bookFile;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+}
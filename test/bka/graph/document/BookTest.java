@@ -0,0 +1,208 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.document;
+
+import bka.graph.*;
+import bka.graph.swing.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+public class BookTest {
+
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("BookTest").toFile();
+        xmlFile = copyFixture(directory);
+        pagedFile = new File(directory, "driehoek.graph");
+    }
+
+
+    @After
+    public void tearDown() {
+        deleteDirectory(directory);
+    }
+
+
+    @Test
+    public void testLoadXml() throws IOException {
+        Book book = load(xmlFile);
+        assertEquals(1, book.getDiagramPages().size());
+        DiagramPage page = book.getDiagramPages().get(0);
+        assertEquals(3, page.getVertices().size());
+        assertEquals(3, page.getEdges().size());
+        assertFalse(book.isModified());
+    }
+
+
+    @Test
+    public void testSaveAndLoadPaged() throws IOException {
+        Book book = load(xmlFile);
+        book.save(pagedFile);
+        assertFalse(book.isModified());
+        assertSameContent(book, load(pagedFile));
+    }
+
+
+    @Test
+    public void testSaveAndLoadXml() throws IOException {
+        Book book = load(xmlFile);
+        File file = new File(directory, "copy.xml");
+        book.save(file);
+        assertSameContent(book, load(file));
+    }
+
+
+    @Test
+    public void testIncrementalSaveAppends() throws IOException {
+        load(xmlFile).save(pagedFile);
+        long savedLength = pagedFile.length();
+        Book book = load(pagedFile);
+        DiagramPage page = book.getDiagramPages().get(0);
+        VertexPicture vertexPicture = firstVertexPicture(page);
+        vertexPicture.setLocation(new Point(11, 22));
+        book.pageModified(page);
+        assertTrue(book.isModified());
+        book.save(pagedFile);
+        assertTrue("appended", pagedFile.length() > savedLength);
+        Book loaded = load(pagedFile);
+        assertSameContent(book, loaded);
+        assertEquals(new Point(11, 22), firstVertexPicture(loaded.getDiagramPages().get(0)).getLocation());
+    }
+
+
+    @Test
+    public void testIncrementalSaveAppendsNewVertices() throws IOException {
+        load(xmlFile).save(pagedFile);
+        Book book = load(pagedFile);
+        DiagramPage page = book.getDiagramPages().get(0);
+        VertexPicture added = new VertexPicture();
+        added.setVertex(new NamedVertex());
+        added.setLocation(new Point(400, 300));
+        EdgePicture edge = new EdgePicture();
+        edge.setEdge(new Edge());
+        edge.setOriginPicture(firstVertexPicture(page));
+        edge.setTerminusPicture(added);
+        edge.setXPoints(new int[] { 1, 400 });
+        edge.setYPoints(new int[] { 2, 300 });
+        page.add(added);
+        page.add(edge);
+        book.pageModified(page);
+        book.save(pagedFile);
+        assertSameContent(book, load(pagedFile));
+    }
+
+
+    @Test
+    public void testRepeatedSavesRewrite() throws IOException {
+        load(xmlFile).save(pagedFile);
+        long savedLength = pagedFile.length();
+        Book book = load(pagedFile);
+        DiagramPage page = book.getDiagramPages().get(0);
+        long maximumLength = 0;
+        for (int i = 0; i < 20; ++i) {
+            firstVertexPicture(page).setLocation(new Point(i, i));
+            book.pageModified(page);
+            book.save(pagedFile);
+            maximumLength = Math.max(maximumLength, pagedFile.length());
+        }
+        assertTrue("rewritten", maximumLength < 3 * savedLength);
+        assertSameContent(book, load(pagedFile));
+    }
+
+
+    @Test
+    public void testSaveToOtherFileRewrites() throws IOException {
+        Book book = load(xmlFile);
+        book.save(pagedFile);
+        firstVertexPicture(book.getDiagramPages().get(0)).setLocation(new Point(5, 6));
+        book.pageModified(book.getDiagramPages().get(0));
+        File otherFile = new File(directory, "other.graph");
+        book.save(otherFile);
+        assertSameContent(book, load(otherFile));
+    }
+
+
+    static File copyFixture(File directory) throws IOException {
+        File file = new File(directory, "driehoek.xml");
+        try (InputStream input = BookTest.class.getResourceAsStream(FIXTURE)) {
+            Files.copy(input, file.toPath());
+        }
+        return file;
+    }
+
+
+    static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+
+    static Book load(File file) throws IOException {
+        Book book = new Book(null);
+        book.load(file);
+        return book;
+    }
+
+
+    static VertexPicture firstVertexPicture(DiagramPage page) {
+        return page.getVertices().iterator().next();
+    }
+
+
+    /**
+     * Asserts that the pages of both books show the same pictures, and that a vertex shown by several pictures
+     * in one book is shown by the corresponding pictures in the other.
+     */
+    static void assertSameContent(Book expected, Book actual) {
+        java.util.List<DiagramPage> expectedPages = expected.getDiagramPages();
+        java.util.List<DiagramPage> actualPages = actual.getDiagramPages();
+        assertEquals(expectedPages.size(), actualPages.size());
+        Map<Vertex, Vertex> vertices = new IdentityHashMap<>();
+        for (int i = 0; i < expectedPages.size(); ++i) {
+            assertEquals(expectedPages.get(i).getTitle(), actualPages.get(i).getTitle());
+            java.util.List<VertexPicture> expectedVertices = new ArrayList<>(expectedPages.get(i).getVertices());
+            java.util.List<VertexPicture> actualVertices = new ArrayList<>(actualPages.get(i).getVertices());
+            assertEquals(expectedVertices.size(), actualVertices.size());
+            for (int j = 0; j < expectedVertices.size(); ++j) {
+                assertEquals(expectedVertices.get(j).getLocation(), actualVertices.get(j).getLocation());
+                assertEquals(expectedVertices.get(j).getSize(), actualVertices.get(j).getSize());
+                Vertex mapped = vertices.putIfAbsent(expectedVertices.get(j).getVertex(), actualVertices.get(j).getVertex());
+                assertTrue("same vertex", mapped == null || mapped == actualVertices.get(j).getVertex());
+            }
+            java.util.List<EdgePicture> expectedEdges = new ArrayList<>(expectedPages.get(i).getEdges());
+            java.util.List<EdgePicture> actualEdges = new ArrayList<>(actualPages.get(i).getEdges());
+            assertEquals(expectedEdges.size(), actualEdges.size());
+            for (int j = 0; j < expectedEdges.size(); ++j) {
+                assertArrayEquals(expectedEdges.get(j).getXPoints(), actualEdges.get(j).getXPoints());
+                assertArrayEquals(expectedEdges.get(j).getYPoints(), actualEdges.get(j).getYPoints());
+                assertNotNull(actualEdges.get(j).getEdge());
+                assertEquals(expectedVertices.indexOf(expectedEdges.get(j).getOriginPicture()), actualVertices.indexOf(actualEdges.get(j).getOriginPicture()));
+                assertEquals(expectedVertices.indexOf(expectedEdges.get(j).getTerminusPicture()), actualVertices.indexOf(actualEdges.get(j).getTerminusPicture()));
+            }
+        }
+        Set<Vertex> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        distinct.addAll(vertices.values());
+        assertEquals("distinct vertices", vertices.size(), distinct.size());
+    }
+
+
+    private File directory;
+    private File xmlFile;
+    private File pagedFile;
+
+    private static final String FIXTURE = "/resources/driehoek.xml";
+
+}
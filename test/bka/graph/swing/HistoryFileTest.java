@@ -0,0 +1,108 @@
+/*
+** Copyright © Bart Kampers
+*/
+
+package bka.graph.swing;
+
+import bka.graph.*;
+import bka.graph.document.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+public class HistoryFileTest {
+
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("HistoryFileTest").toFile();
+        bookFile = new File(directory, "driehoek.xml");
+        try (InputStream input = HistoryFileTest.class.getResourceAsStream("/resources/driehoek.xml")) {
+            Files.copy(input, bookFile.toPath());
+        }
+        Book book = new Book(null);
+        book.load(bookFile);
+        page = book.getDiagramPages().get(0);
+    }
+
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+
+    @Test
+    public void testWriteAndRestore() throws IOException {
+        VertexPicture vertexPicture = page.getVertices().iterator().next();
+        EdgePicture edgePicture = page.getEdges().iterator().next();
+        VertexPicture deleted = new VertexPicture();
+        deleted.setVertex(new NamedVertex());
+        deleted.setLocation(new Point(3, 4));
+        DrawHistory history = new DrawHistory(null, HISTORY_LIMIT, HISTORY_BUDGET, 0);
+        history.addVertexRelocations(Collections.singletonMap(vertexPicture, new Point(1, 2)));
+        history.addEdgeTransformation(edgePicture, new int[] { 10, 20 }, new int[] { 30, 40 });
+        history.addVertexDeletion(deleted, Collections.emptyList());
+        DiagramPage otherPage = DiagramPage.createEmpty();
+        new HistoryFile(bookFile, null, null).write(Arrays.asList(otherPage, page), stored -> (stored == page) ? history : null);
+
+        HistoryFile historyFile = new HistoryFile(bookFile, null, null);
+        historyFile.open();
+        historyFile.pageOpened(otherPage, 0);
+        historyFile.pageOpened(page, 1);
+        DrawHistory otherHistory = new DrawHistory(null, HISTORY_LIMIT, HISTORY_BUDGET, 0);
+        historyFile.restore(otherPage, otherHistory);
+        assertTrue(otherHistory.getMutattions().isEmpty());
+        DrawHistory restored = new DrawHistory(null, HISTORY_LIMIT, HISTORY_BUDGET, 0);
+        historyFile.restore(page, restored);
+        assertEquals(3, restored.getMutattions().size());
+        assertEquals(3, restored.getIndex());
+        assertEquals("VertexRelocation", restored.getMutattions().get(0).getClass().getSimpleName());
+        assertEquals("EdgeTransformation", restored.getMutattions().get(1).getClass().getSimpleName());
+        assertEquals("PictureDeletion", restored.getMutattions().get(2).getClass().getSimpleName());
+        Collection<AbstractPicture> pictures = restored.getPictures();
+        assertTrue(pictures.contains(vertexPicture));
+        assertTrue(pictures.contains(edgePicture));
+        VertexPicture restoredDeletion = null;
+        for (AbstractPicture picture : pictures) {
+            if (picture instanceof VertexPicture && ! page.contains(picture)) {
+                restoredDeletion = (VertexPicture) picture;
+            }
+        }
+        assertNotNull(restoredDeletion);
+        assertEquals(new Point(3, 4), restoredDeletion.getLocation());
+    }
+
+
+    @Test
+    public void testStaleHistoryIsIgnored() throws IOException {
+        DrawHistory history = new DrawHistory(null, HISTORY_LIMIT, HISTORY_BUDGET, 0);
+        history.addVertexRelocations(Collections.singletonMap(page.getVertices().iterator().next(), new Point(1, 2)));
+        new HistoryFile(bookFile, null, null).write(Arrays.asList(page), stored -> history);
+        try (FileOutputStream output = new FileOutputStream(bookFile, true)) {
+            output.write('\n'); // Book file changed after the history was stored
+        }
+        HistoryFile historyFile = new HistoryFile(bookFile, null, null);
+        historyFile.open();
+        historyFile.pageOpened(page, 0);
+        DrawHistory restored = new DrawHistory(null, HISTORY_LIMIT, HISTORY_BUDGET, 0);
+        historyFile.restore(page, restored);
+        assertTrue(restored.getMutattions().isEmpty());
+    }
+
+
+    private File directory;
+    private File bookFile;
+    private DiagramPage page;
+
+    private static final int HISTORY_LIMIT = 100;
+    private static final long HISTORY_BUDGET = 1 << 20;
+
+}